@@ -0,0 +1,18 @@
+package net.minecraft.server.vbench;
+
+/**
+ * Stand-in for the server's Item class. Holds the maximum stack size the way the server does.
+ */
+public class Item {
+
+    private final int maxStackSize;
+
+    public Item(int maxStackSize) {
+        this.maxStackSize = maxStackSize;
+    }
+
+    public int getMaxStackSize() {
+        return this.maxStackSize;
+    }
+
+}
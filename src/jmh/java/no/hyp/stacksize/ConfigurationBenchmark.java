@@ -0,0 +1,61 @@
+package no.hyp.stacksize;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a configuration and reading its stack sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConfigurationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int entries;
+
+    private Path dataFolder;
+
+    private Stacksize plugin;
+
+    private byte[] contents;
+
+    private YamlConfiguration configuration;
+
+    @Setup
+    public void setup() throws Exception {
+        this.dataFolder = Files.createTempDirectory("stacksize-benchmark");
+        String configuration = StandIns.configuration(StandIns.items(this.entries), 16);
+        this.plugin = StandIns.plugin(StandIns.server(StandIns.scheduler()), this.dataFolder, configuration);
+        this.contents = configuration.getBytes(StandardCharsets.UTF_8);
+        this.configuration = this.plugin.configurationParse(this.contents);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        StandIns.delete(this.dataFolder);
+    }
+
+    /**
+     * Compile the stack size rules of an already parsed configuration.
+     */
+    @Benchmark
+    public void configurationCompileRules(Blackhole blackhole) {
+        blackhole.consume(this.plugin.configurationCompileRules(this.configuration));
+    }
+
+    /**
+     * Parse the YAML of a configuration.
+     */
+    @Benchmark
+    public void configurationParse(Blackhole blackhole) throws Exception {
+        blackhole.consume(this.plugin.configurationParse(this.contents));
+    }
+
+}
@@ -0,0 +1,83 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.bukkit.event.inventory.ClickType;
+import org.bukkit.event.inventory.InventoryAction;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The inventory click listener, for clicks with and without a modified material.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InventoryClickBenchmark {
+
+    private Path dataFolder;
+
+    private Stacksize plugin;
+
+    private InventoryClickEvent modifiedClick;
+
+    private InventoryClickEvent unmodifiedClick;
+
+    private InventoryClickEvent shiftClick;
+
+    @Setup
+    public void setup() throws Exception {
+        this.dataFolder = Files.createTempDirectory("stacksize-benchmark");
+        String configuration = StandIns.configuration(Collections.singletonList(Material.POTION), 4);
+        this.plugin = StandIns.plugin(StandIns.server(StandIns.scheduler()), this.dataFolder, configuration);
+        this.plugin.reloadStackSizes(false);
+        StandIns.StandInPlayer modified = new StandIns.StandInPlayer("modified");
+        modified.cursor = new ItemStack(Material.POTION, 1);
+        modified.chest.setItem(0, new ItemStack(Material.POTION, 2));
+        this.modifiedClick = new InventoryClickEvent(modified.view, InventoryType.SlotType.CONTAINER, 0, ClickType.LEFT, InventoryAction.PLACE_ALL);
+        StandIns.StandInPlayer unmodified = new StandIns.StandInPlayer("unmodified");
+        unmodified.cursor = new ItemStack(Material.STONE, 1);
+        unmodified.chest.setItem(0, new ItemStack(Material.STONE, 2));
+        this.unmodifiedClick = new InventoryClickEvent(unmodified.view, InventoryType.SlotType.CONTAINER, 0, ClickType.LEFT, InventoryAction.PLACE_ALL);
+        StandIns.StandInPlayer shift = new StandIns.StandInPlayer("shift");
+        shift.chest.setItem(0, new ItemStack(Material.POTION, 2));
+        this.shiftClick = new InventoryClickEvent(shift.view, InventoryType.SlotType.CONTAINER, 0, ClickType.SHIFT_LEFT, InventoryAction.MOVE_TO_OTHER_INVENTORY);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.plugin.onDisable();
+        StandIns.delete(this.dataFolder);
+    }
+
+    /**
+     * A click placing a modified material, which queues a slot resend.
+     */
+    @Benchmark
+    public void modifiedClick() {
+        this.plugin.onInventoryClick(this.modifiedClick);
+    }
+
+    /**
+     * A click placing a material with its Vanilla stack size, which queues nothing.
+     */
+    @Benchmark
+    public void unmodifiedClick() {
+        this.plugin.onInventoryClick(this.unmodifiedClick);
+    }
+
+    /**
+     * A shift click moving a modified material, which queues a whole inventory resend.
+     */
+    @Benchmark
+    public void shiftClick() {
+        this.plugin.onInventoryClick(this.shiftClick);
+    }
+
+}
@@ -0,0 +1,79 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloading the stack sizes of a configuration with a number of entries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReloadBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int entries;
+
+    private Path dataFolder;
+
+    private Stacksize plugin;
+
+    /**
+     * Two configurations with the same materials but different stack sizes.
+     */
+    private byte[][] contents;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        this.dataFolder = Files.createTempDirectory("stacksize-benchmark");
+        List<Material> items = StandIns.items(this.entries);
+        String configuration = StandIns.configuration(items, 16);
+        this.plugin = StandIns.plugin(StandIns.server(StandIns.scheduler()), this.dataFolder, configuration);
+        this.plugin.reloadStackSizes(false);
+        this.contents = new byte[][] {
+                StandIns.configuration(items, 32).getBytes(StandardCharsets.UTF_8),
+                configuration.getBytes(StandardCharsets.UTF_8)
+        };
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.plugin.onDisable();
+        StandIns.delete(this.dataFolder);
+    }
+
+    /**
+     * Reload a configuration that has not changed since it was applied.
+     */
+    @Benchmark
+    public void reloadUnchanged(Blackhole blackhole) {
+        blackhole.consume(this.plugin.reloadStackSizes(false));
+    }
+
+    /**
+     * Reload a configuration where every stack size has changed, the way the configuration watcher does:
+     * parse, compile the profiles and compute the changes, then apply them.
+     */
+    @Benchmark
+    public void reloadChanged(Blackhole blackhole) throws Exception {
+        byte[] contents = this.contents[this.next++ % 2];
+        String fingerprint = ConfigurationWriter.fingerprint(contents);
+        YamlConfiguration configuration = this.plugin.configurationParse(contents);
+        StackSizeProfiles profiles = this.plugin.configurationReadProfiles(configuration, this.plugin.getShards());
+        String profile = this.plugin.configurationSelectProfile(configuration, profiles, null);
+        StackSizeSnapshot snapshot = this.plugin.getStackSizeSnapshot();
+        StackSizeTable changed = Stacksize.changedStackSizes(profiles.get(profile), snapshot.getApplied(), snapshot.getVanilla());
+        blackhole.consume(this.plugin.applyConfiguration(configuration, fingerprint, this.plugin.getShards(), profiles, profile, changed, snapshot));
+    }
+
+}
@@ -0,0 +1,357 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.event.inventory.ClickType;
+import org.bukkit.event.inventory.InventoryAction;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A headless load test. The plugin is enabled against the stand-in server, with a simulated scheduler that runs
+ * its tasks once every tick, and driven through one of the scenarios:
+ * <ul>
+ *     <li>{@code clicks} - Players clicking in their inventories every tick.</li>
+ *     <li>{@code reload} - The configuration file being rewritten every tick, and reloaded by the real
+ *     configuration watcher thread.</li>
+ *     <li>{@code modify} - Large batches of stack sizes being modified with the modify command.</li>
+ * </ul>
+ * Ticks are run in real time, so that the watcher's debounce behaves like on a server. The simulator thread
+ * stands in for the main thread. At the end, the main thread time and allocations per tick, the number of
+ * scheduled tasks and the resync volume are reported.
+ *
+ * Run with {@code ./gradlew simulate --args='scenario=clicks players=200 clicks=4'}. Options are given as
+ * key=value pairs. See {@link #DEFAULTS}.
+ */
+final class Simulator {
+
+    /**
+     * The options and their default values.
+     */
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("scenario", "clicks");
+        // The number of simulated ticks.
+        DEFAULTS.put("ticks", "200");
+        // The number of players, and the number of clicks by each player per tick.
+        DEFAULTS.put("players", "100");
+        DEFAULTS.put("clicks", "4");
+        // The number of configuration file writes per tick, and the watcher debounce window in milliseconds.
+        DEFAULTS.put("reloads", "1");
+        DEFAULTS.put("debounce", "0");
+        // The number of materials per modify batch, and the number of ticks between batches.
+        DEFAULTS.put("batch", "500");
+        DEFAULTS.put("interval", "10");
+        // The number of configured materials.
+        DEFAULTS.put("materials", "100");
+    }
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Map<String, String> options;
+
+    private final SimulatedScheduler scheduler = new SimulatedScheduler();
+
+    private final List<StandIns.StandInPlayer> players = new ArrayList<>();
+
+    private Path dataFolder;
+
+    private SimulatedPlugin plugin;
+
+    private Simulator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] arguments) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String argument : arguments) {
+            String[] pair = argument.split("=", 2);
+            if (pair.length != 2 || !DEFAULTS.containsKey(pair[0])) {
+                System.err.println(String.format("Unknown option \"%s\". Options: %s", argument, DEFAULTS.keySet()));
+                System.exit(1);
+            }
+            options.put(pair[0], pair[1]);
+        }
+        new Simulator(options).run();
+        System.exit(0);
+    }
+
+    private int option(String name) {
+        return Integer.parseInt(this.options.get(name));
+    }
+
+    private void run() throws Exception {
+        String scenario = this.options.get("scenario");
+        if (!Arrays.asList("clicks", "reload", "modify").contains(scenario)) {
+            throw new IllegalArgumentException("Unknown scenario: " + scenario);
+        }
+        Server server = StandIns.server(this.scheduler.scheduler);
+        Bukkit.setServer(server);
+        this.dataFolder = Files.createTempDirectory("stacksize-simulator");
+        List<Material> items = StandIns.items(this.option("materials"));
+        Files.write(this.dataFolder.resolve("config.yml"), this.configuration(items, 16).getBytes(StandardCharsets.UTF_8));
+        PluginDescriptionFile description = new PluginDescriptionFile("Stacksize", "simulator", Stacksize.class.getName());
+        @SuppressWarnings("deprecation")
+        JavaPluginLoader loader = new JavaPluginLoader(server);
+        this.plugin = new SimulatedPlugin(loader, description, this.dataFolder.toFile(), this.dataFolder.resolve("Stacksize.jar").toFile());
+        this.plugin.enable();
+        try {
+            this.simulate(scenario, items);
+        } finally {
+            this.plugin.disable();
+            StandIns.delete(this.dataFolder);
+        }
+    }
+
+    private void simulate(String scenario, List<Material> items) throws Exception {
+        int ticks = this.option("ticks");
+        List<InventoryClickEvent> clicks = scenario.equals("clicks") ? this.clicks(items.get(0)) : new ArrayList<>();
+        CommandSender sender = StandIns.sender();
+        Command command = new Command("stacksize") {
+            @Override
+            public boolean execute(CommandSender sender, String label, String[] arguments) {
+                return false;
+            }
+        };
+        String[] contents = {this.configuration(items, 32), this.configuration(items, 16)};
+        List<Material> batch = StandIns.items(this.option("batch"));
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long[] tickNanos = new long[ticks];
+        long[] tickBytes = new long[ticks];
+        long next = System.nanoTime();
+        for (int tick = 0; tick < ticks; tick++) {
+            // Outside the measurement: an editor saving the configuration.
+            if (scenario.equals("reload")) {
+                for (int i = 0; i < this.option("reloads"); i++) {
+                    Files.write(this.dataFolder.resolve("config.yml"), contents[(tick + i) % 2].getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            if (scenario.equals("clicks")) {
+                for (InventoryClickEvent click : clicks) {
+                    this.plugin.onInventoryClick(click);
+                }
+            } else if (scenario.equals("modify") && tick % this.option("interval") == 0) {
+                this.plugin.onCommand(sender, command, "stacksize", this.modify(batch, tick / this.option("interval") % 2 == 0 ? 8 : 16));
+            }
+            this.scheduler.tick();
+            tickNanos[tick] = System.nanoTime() - start;
+            tickBytes[tick] = threads.getThreadAllocatedBytes(thread) - bytes;
+            // Wait for the next tick, so that other threads run in real time.
+            next += TICK;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+        // Let the watcher finish, and run the tasks it scheduled.
+        TimeUnit.MILLISECONDS.sleep(this.plugin.getSettings().getWatcherDebounce() + 100);
+        this.scheduler.tick();
+        this.report(scenario, tickNanos, tickBytes);
+    }
+
+    /**
+     * @return The clicks of every player in one tick. Every fourth click is a shift click, which queues a whole
+     * inventory resend. The others place a modified material, which queues a slot resend.
+     */
+    private List<InventoryClickEvent> clicks(Material modified) {
+        List<InventoryClickEvent> clicks = new ArrayList<>();
+        for (int i = 0; i < this.option("players"); i++) {
+            StandIns.StandInPlayer player = new StandIns.StandInPlayer("player" + i);
+            player.cursor = new ItemStack(modified, 1);
+            player.chest.setItem(0, new ItemStack(modified, 2));
+            player.chest.setItem(1, new ItemStack(modified, 2));
+            this.players.add(player);
+            for (int j = 0; j < this.option("clicks"); j++) {
+                if (j % 4 == 3) {
+                    clicks.add(new InventoryClickEvent(player.view, InventoryType.SlotType.CONTAINER, 1, ClickType.SHIFT_LEFT, InventoryAction.MOVE_TO_OTHER_INVENTORY));
+                } else {
+                    clicks.add(new InventoryClickEvent(player.view, InventoryType.SlotType.CONTAINER, 0, ClickType.LEFT, InventoryAction.PLACE_ALL));
+                }
+            }
+        }
+        return clicks;
+    }
+
+    /**
+     * @return The arguments of a modify command giving every material a stack size.
+     */
+    private String[] modify(List<Material> materials, int size) {
+        String[] arguments = new String[materials.size() + 1];
+        arguments[0] = "modify";
+        for (int i = 0; i < materials.size(); i++) {
+            arguments[i + 1] = materials.get(i).name() + "=" + size;
+        }
+        return arguments;
+    }
+
+    private String configuration(List<Material> materials, int size) {
+        return StandIns.configuration(materials, size) + "watcherDebounce: " + this.option("debounce") + "\n";
+    }
+
+    private void report(String scenario, long[] tickNanos, long[] tickBytes) {
+        long[] sorted = tickNanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long nanos : tickNanos) {
+            total += nanos;
+        }
+        long bytes = 0;
+        for (long tickByte : tickBytes) {
+            bytes += tickByte;
+        }
+        int updates = 0;
+        for (StandIns.StandInPlayer player : this.players) {
+            updates += player.updates;
+        }
+        StacksizeStatistics statistics = this.plugin.getStatistics();
+        System.out.println(String.format("Scenario %s over %d tick(s) with %s", scenario, tickNanos.length, this.options));
+        System.out.println(String.format("Main thread time per tick: mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                total / 1e6 / tickNanos.length, sorted[sorted.length / 2] / 1e6, sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * 0.99) - 1)] / 1e6, sorted[sorted.length - 1] / 1e6));
+        System.out.println(String.format("Main thread allocations per tick: mean %d bytes", bytes / tickNanos.length));
+        System.out.println(String.format("Scheduled tasks: %d timer(s), %d timer run(s), %d task(s), %d async task(s)",
+                this.scheduler.timers.size(), this.scheduler.timerRuns.get(), this.scheduler.tasks.get(), this.scheduler.asyncTasks.get()));
+        System.out.println(String.format("Resyncs: %d scheduled, %d full inventory update(s)", statistics.getResyncsScheduled(), updates));
+        System.out.println(String.format("Reloads: %d, %d by the watcher from %d event(s), %d material(s) touched",
+                statistics.getReloadCount(), statistics.getWatcherReloads(), statistics.getWatcherEvents(), statistics.getMaterialsTouched()));
+        System.out.println(String.format("Commands: %d, inventory clicks: %d", statistics.getCommandCount(), statistics.getInventoryClickCount()));
+    }
+
+    /**
+     * The plugin, with the stand-in server internals in place of the running server's.
+     */
+    private static final class SimulatedPlugin extends Stacksize {
+
+        SimulatedPlugin(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+            super(loader, description, dataFolder, file);
+        }
+
+        @Override
+        String packageVersion() {
+            return StandIns.PACKAGE_VERSION;
+        }
+
+        void enable() {
+            this.setEnabled(true);
+        }
+
+        void disable() {
+            this.setEnabled(false);
+        }
+
+    }
+
+    /**
+     * A scheduler that runs tasks when the simulator ticks it. Tasks may be scheduled from any thread, and are
+     * run on the simulator thread. Asynchronous tasks run on a thread pool.
+     */
+    private static final class SimulatedScheduler {
+
+        private final BukkitScheduler scheduler;
+
+        private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+        private final List<Timer> timers = new ArrayList<>();
+
+        private final ExecutorService async = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Simulated async task");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private final AtomicLong tasks = new AtomicLong();
+
+        private final AtomicLong asyncTasks = new AtomicLong();
+
+        private final AtomicLong timerRuns = new AtomicLong();
+
+        private long tick = 0;
+
+        SimulatedScheduler() {
+            Map<String, Function<Object[], Object>> answers = new HashMap<>();
+            answers.put("runTask", arguments -> {
+                this.tasks.incrementAndGet();
+                this.pending.add((Runnable) arguments[1]);
+                return null;
+            });
+            answers.put("runTaskTimer", arguments -> {
+                synchronized (this.timers) {
+                    this.timers.add(new Timer((Runnable) arguments[1], this.tick + (Long) arguments[2], (Long) arguments[3]));
+                }
+                return null;
+            });
+            answers.put("runTaskAsynchronously", arguments -> {
+                this.asyncTasks.incrementAndGet();
+                this.async.execute((Runnable) arguments[1]);
+                return null;
+            });
+            this.scheduler = StandIns.proxy(BukkitScheduler.class, answers);
+        }
+
+        /**
+         * Run the tasks scheduled before this tick, and the timers that are due.
+         */
+        void tick() {
+            for (int i = this.pending.size(); i > 0; i--) {
+                this.pending.poll().run();
+            }
+            List<Timer> timers;
+            synchronized (this.timers) {
+                timers = new ArrayList<>(this.timers);
+            }
+            for (Timer timer : timers) {
+                if (timer.next <= this.tick) {
+                    timer.task.run();
+                    timer.next += Math.max(1, timer.period);
+                    this.timerRuns.incrementAndGet();
+                }
+            }
+            this.tick++;
+        }
+
+    }
+
+    private static final class Timer {
+
+        private final Runnable task;
+
+        private final long period;
+
+        private long next;
+
+        Timer(Runnable task, long next, long period) {
+            this.task = task;
+            this.next = next;
+            this.period = period;
+        }
+
+    }
+
+}
@@ -0,0 +1,64 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Modifying the maximum stack size of one material.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StackSizeBenchmark {
+
+    private Path dataFolder;
+
+    private Stacksize plugin;
+
+    private VersionAdapter adapter;
+
+    private Material[] materials;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        this.dataFolder = Files.createTempDirectory("stacksize-benchmark");
+        List<Material> items = StandIns.items(100);
+        this.plugin = StandIns.plugin(StandIns.server(StandIns.scheduler()), this.dataFolder, StandIns.configuration(items, 16));
+        this.adapter = VersionAdapter.probe(StandIns.PACKAGE_VERSION);
+        this.materials = items.toArray(new Material[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.plugin.onDisable();
+        StandIns.delete(this.dataFolder);
+    }
+
+    /**
+     * The plugin's modifyStackSize, alternating between two sizes so that every call modifies the material.
+     */
+    @Benchmark
+    public void modifyStackSize(Blackhole blackhole) {
+        int i = this.next++;
+        Material material = this.materials[i % this.materials.length];
+        blackhole.consume(this.plugin.modifyStackSize(material, (i / this.materials.length) % 2 == 0 ? 16 : 32, false));
+    }
+
+    /**
+     * The reflective modification alone.
+     */
+    @Benchmark
+    public void adapterSetMaxStackSize() throws ReflectiveOperationException {
+        int i = this.next++;
+        this.adapter.setMaxStackSize(this.materials[i % this.materials.length], (i / this.materials.length) % 2 == 0 ? 16 : 32);
+    }
+
+}
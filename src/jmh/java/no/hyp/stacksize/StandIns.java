@@ -0,0 +1,319 @@
+package no.hyp.stacksize;
+
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.UnsafeValues;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.HumanEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryView;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.ServicesManager;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Lightweight stand-ins for the Bukkit server, players and inventories, so that the plugin can run without a
+ * server. Interfaces are implemented with proxies that answer the methods the plugin uses, and return default
+ * values for everything else.
+ *
+ * The server internals are stood in for by the classes in the "vbench" package version.
+ */
+final class StandIns {
+
+    /**
+     * The package version of the stand-in server internals.
+     */
+    static final String PACKAGE_VERSION = "vbench";
+
+    private StandIns() {}
+
+    /**
+     * Implement an interface with a proxy.
+     *
+     * @param type The interface.
+     * @param answers Method names and their implementations. Other methods return default values.
+     * @return The stand-in.
+     */
+    static <T> T proxy(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        return type.cast(Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] {type}, (proxy, method, arguments) -> {
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if (answer != null) {
+                return answer.apply(arguments);
+            }
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == arguments[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + " stand-in";
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @param scheduler The scheduler the server returns.
+     * @return A server with a logger, the given scheduler and no tags. Plugin and service registrations are ignored.
+     */
+    static Server server(BukkitScheduler scheduler) {
+        Logger logger = Logger.getLogger("Stacksize stand-in server");
+        UnsafeValues unsafe = proxy(UnsafeValues.class, answers("fromLegacy", arguments -> arguments[0]));
+        PluginManager pluginManager = proxy(PluginManager.class, new HashMap<>());
+        ServicesManager servicesManager = proxy(ServicesManager.class, new HashMap<>());
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getLogger", arguments -> logger);
+        answers.put("getUnsafe", arguments -> unsafe);
+        answers.put("getTags", arguments -> Collections.emptyList());
+        answers.put("getScheduler", arguments -> scheduler);
+        answers.put("getPluginManager", arguments -> pluginManager);
+        answers.put("getServicesManager", arguments -> servicesManager);
+        answers.put("getName", arguments -> "Stand-in");
+        answers.put("getVersion", arguments -> PACKAGE_VERSION);
+        answers.put("getBukkitVersion", arguments -> PACKAGE_VERSION);
+        return proxy(Server.class, answers);
+    }
+
+    /**
+     * @return A scheduler that ignores every task.
+     */
+    static BukkitScheduler scheduler() {
+        return proxy(BukkitScheduler.class, new HashMap<>());
+    }
+
+    /**
+     * Create the plugin in a data folder containing the given configuration, and initialize it for the stand-in
+     * server internals. No threads, tasks or listeners are started.
+     *
+     * @param server The server.
+     * @param dataFolder The plugin's data folder. Created if missing.
+     * @param configuration The contents of config.yml.
+     * @return The plugin.
+     */
+    static Stacksize plugin(Server server, Path dataFolder, String configuration) throws IOException, VersionAdapter.UnsupportedVersionException {
+        Files.createDirectories(dataFolder);
+        Files.write(dataFolder.resolve("config.yml"), configuration.getBytes(StandardCharsets.UTF_8));
+        PluginDescriptionFile description = new PluginDescriptionFile("Stacksize", "stand-in", Stacksize.class.getName());
+        @SuppressWarnings("deprecation")
+        JavaPluginLoader loader = new JavaPluginLoader(server);
+        Stacksize plugin = new Stacksize(loader, description, dataFolder.toFile(), dataFolder.resolve("Stacksize.jar").toFile());
+        plugin.initialize(VersionAdapter.probe(PACKAGE_VERSION));
+        return plugin;
+    }
+
+    /**
+     * @return The first materials that are items, in ordinal order.
+     */
+    static List<Material> items(int count) {
+        List<Material> items = new ArrayList<>();
+        for (Material material : Material.values()) {
+            if (items.size() == count) {
+                break;
+            }
+            if (!material.isLegacy() && material.isItem() && material != Material.AIR) {
+                items.add(material);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Build configuration file contents.
+     *
+     * @param materials The materials to list under stackSizes.
+     * @param size The stack size to give every material.
+     * @return The contents of config.yml.
+     */
+    static String configuration(List<Material> materials, int size) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("version: 4\n");
+        builder.append("required: false\n");
+        builder.append("log: []\n");
+        builder.append("stackSizes:\n");
+        for (Material material : materials) {
+            builder.append("  ").append(material.name()).append(": ").append(size).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param size The number of slots.
+     * @param type The inventory type.
+     * @return An inventory backed by an array.
+     */
+    static Inventory inventory(int size, InventoryType type) {
+        return proxy(Inventory.class, inventoryAnswers(new ItemStack[size], type));
+    }
+
+    /**
+     * @return A player inventory backed by an array.
+     */
+    static PlayerInventory playerInventory() {
+        return proxy(PlayerInventory.class, inventoryAnswers(new ItemStack[41], InventoryType.PLAYER));
+    }
+
+    private static Map<String, Function<Object[], Object>> inventoryAnswers(ItemStack[] items, InventoryType type) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getSize", arguments -> items.length);
+        answers.put("getType", arguments -> type);
+        answers.put("getItem", arguments -> items[(Integer) arguments[0]]);
+        answers.put("setItem", arguments -> items[(Integer) arguments[0]] = (ItemStack) arguments[1]);
+        answers.put("getContents", arguments -> items);
+        answers.put("getStorageContents", arguments -> items);
+        return answers;
+    }
+
+    /**
+     * A survival mode player with a chest open.
+     */
+    static final class StandInPlayer {
+
+        final Player player;
+
+        final Inventory chest = inventory(27, InventoryType.CHEST);
+
+        final PlayerInventory inventory = playerInventory();
+
+        InventoryView view;
+
+        ItemStack cursor;
+
+        /**
+         * The number of times the whole inventory was resent.
+         */
+        int updates = 0;
+
+        StandInPlayer(String name) {
+            Map<String, Function<Object[], Object>> answers = new HashMap<>();
+            answers.put("getName", arguments -> name);
+            answers.put("getGameMode", arguments -> GameMode.SURVIVAL);
+            answers.put("getInventory", arguments -> this.inventory);
+            answers.put("getItemOnCursor", arguments -> this.cursor);
+            answers.put("setItemOnCursor", arguments -> this.cursor = (ItemStack) arguments[0]);
+            answers.put("getOpenInventory", arguments -> this.view);
+            answers.put("isOnline", arguments -> true);
+            answers.put("updateInventory", arguments -> this.updates++);
+            answers.put("hasPermission", arguments -> true);
+            this.player = proxy(Player.class, answers);
+            this.view = new StandInView(this.chest, this.inventory, this.player);
+        }
+
+    }
+
+    /**
+     * A chest view.
+     */
+    static final class StandInView extends InventoryView {
+
+        private final Inventory top;
+
+        private final Inventory bottom;
+
+        private final HumanEntity player;
+
+        StandInView(Inventory top, Inventory bottom, HumanEntity player) {
+            this.top = top;
+            this.bottom = bottom;
+            this.player = player;
+        }
+
+        @Override
+        public Inventory getTopInventory() {
+            return this.top;
+        }
+
+        @Override
+        public Inventory getBottomInventory() {
+            return this.bottom;
+        }
+
+        @Override
+        public HumanEntity getPlayer() {
+            return this.player;
+        }
+
+        @Override
+        public InventoryType getType() {
+            return this.top.getType();
+        }
+
+        @Override
+        public String getTitle() {
+            return "Chest";
+        }
+
+    }
+
+    /**
+     * @return A command sender with every permission.
+     */
+    static CommandSender sender() {
+        return proxy(CommandSender.class, answers("hasPermission", arguments -> true));
+    }
+
+    private static Map<String, Function<Object[], Object>> answers(String method, Function<Object[], Object> answer) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put(method, answer);
+        return answers;
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     */
+    static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package no.hyp.stacksize;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completing a material name in the stacksize command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TabCompleteBenchmark {
+
+    @Param({"", "o", "OAK_", "diamond_sw"})
+    public String prefix;
+
+    private Path dataFolder;
+
+    private Stacksize plugin;
+
+    private CommandSender sender;
+
+    private Command command;
+
+    private String[] arguments;
+
+    @Setup
+    public void setup() throws Exception {
+        this.dataFolder = Files.createTempDirectory("stacksize-benchmark");
+        this.plugin = StandIns.plugin(StandIns.server(StandIns.scheduler()), this.dataFolder, StandIns.configuration(StandIns.items(0), 16));
+        this.sender = StandIns.sender();
+        this.command = new Command("stacksize") {
+            @Override
+            public boolean execute(CommandSender sender, String label, String[] arguments) {
+                return false;
+            }
+        };
+        this.arguments = new String[] {"view", this.prefix};
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        StandIns.delete(this.dataFolder);
+    }
+
+    @Benchmark
+    public List<String> onTabComplete() {
+        return this.plugin.onTabComplete(this.sender, this.command, "stacksize", this.arguments);
+    }
+
+}
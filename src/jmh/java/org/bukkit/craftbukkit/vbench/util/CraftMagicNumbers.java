@@ -0,0 +1,25 @@
+package org.bukkit.craftbukkit.vbench.util;
+
+import net.minecraft.server.vbench.Item;
+import org.bukkit.Material;
+
+/**
+ * Stand-in for CraftBukkit's CraftMagicNumbers. Maps every material to a stand-in Item.
+ */
+public final class CraftMagicNumbers {
+
+    private static final Item[] ITEMS = new Item[Material.values().length];
+
+    static {
+        for (Material material : Material.values()) {
+            ITEMS[material.ordinal()] = new Item(material.getMaxStackSize());
+        }
+    }
+
+    private CraftMagicNumbers() {}
+
+    public static Item getItem(Material material) {
+        return ITEMS[material.ordinal()];
+    }
+
+}
@@ -0,0 +1,226 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The most recent batches of applied stack sizes, kept in a bounded ring. Each entry holds only the materials the
+ * batch changed, with their maximum stack sizes before and after, so that a batch can be undone by applying the
+ * old sizes of just those materials. When the ring is full, the oldest entry is dropped.
+ *
+ * An entry can be encoded as a line, so that the history can be kept in a file across restarts. Only accessed by
+ * the main thread.
+ */
+final class ApplyHistory {
+
+    static final String FILE_NAME = "history.log";
+
+    static final int DEFAULT_SIZE = 32;
+
+    private final Entry[] entries;
+
+    /**
+     * The index of the oldest entry, and the number of entries.
+     */
+    private int first = 0;
+
+    private int count = 0;
+
+    private long nextId = 1;
+
+    /**
+     * @param size The number of entries to keep.
+     */
+    ApplyHistory(int size) {
+        this.entries = new Entry[Math.max(1, size)];
+    }
+
+    /**
+     * Record a batch of changes. Failed materials are not recorded, since their sizes did not change.
+     *
+     * @param changes The changes.
+     * @param time The time of the batch in milliseconds since the epoch.
+     * @return The entry, or null if nothing changed.
+     */
+    Entry record(StackSizeChanges changes, long time) {
+        List<StackSizeChanges.Change> list = changes.getChanges();
+        if (list.isEmpty()) {
+            return null;
+        }
+        int[] ordinals = new int[list.size()];
+        int[] oldSizes = new int[list.size()];
+        int[] newSizes = new int[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            StackSizeChanges.Change change = list.get(i);
+            ordinals[i] = change.getMaterial().ordinal();
+            oldSizes[i] = change.getOldSize();
+            newSizes[i] = change.getNewSize();
+        }
+        Entry entry = new Entry(this.nextId, time, ordinals, oldSizes, newSizes);
+        this.add(entry);
+        return entry;
+    }
+
+    /**
+     * Add an entry read from a file. Entries must be added in order.
+     *
+     * @param entry The entry.
+     */
+    void add(Entry entry) {
+        if (this.count < this.entries.length) {
+            this.entries[(this.first + this.count) % this.entries.length] = entry;
+            this.count++;
+        } else {
+            this.entries[this.first] = entry;
+            this.first = (this.first + 1) % this.entries.length;
+        }
+        this.nextId = Math.max(this.nextId, entry.id + 1);
+    }
+
+    /**
+     * @return The entries, newest first.
+     */
+    List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(this.count);
+        for (int i = this.count - 1; i >= 0; i--) {
+            entries.add(this.entries[(this.first + i) % this.entries.length]);
+        }
+        return entries;
+    }
+
+    int size() {
+        return this.count;
+    }
+
+    /**
+     * @return The number of entries kept.
+     */
+    int capacity() {
+        return this.entries.length;
+    }
+
+    /**
+     * Build the stack sizes that undo the newest entries. Only the materials changed by those entries are included,
+     * each with its size from before the oldest of them. The entries are kept, and applying the result is recorded
+     * as a new entry, so a rollback can itself be rolled back.
+     *
+     * @param steps The number of entries to undo. At most the number of entries.
+     * @return The stack sizes to apply.
+     */
+    StackSizeTable rollback(int steps) {
+        StackSizeTable stackSizes = new StackSizeTable();
+        // Newest first, so that an older entry's old size overwrites a newer one's.
+        for (int i = this.count - 1; i >= this.count - steps; i--) {
+            Entry entry = this.entries[(this.first + i) % this.entries.length];
+            for (int j = 0; j < entry.ordinals.length; j++) {
+                stackSizes.put(entry.ordinals[j], entry.oldSizes[j]);
+            }
+        }
+        return stackSizes;
+    }
+
+    /**
+     * A batch of changed maximum stack sizes.
+     */
+    static final class Entry {
+
+        private final long id;
+
+        private final long time;
+
+        private final int[] ordinals;
+
+        private final int[] oldSizes;
+
+        private final int[] newSizes;
+
+        private Entry(long id, long time, int[] ordinals, int[] oldSizes, int[] newSizes) {
+            this.id = id;
+            this.time = time;
+            this.ordinals = ordinals;
+            this.oldSizes = oldSizes;
+            this.newSizes = newSizes;
+        }
+
+        long getId() {
+            return this.id;
+        }
+
+        long getTime() {
+            return this.time;
+        }
+
+        /**
+         * @return The number of materials changed.
+         */
+        int size() {
+            return this.ordinals.length;
+        }
+
+        Material getMaterial(int index) {
+            return StackSizeTable.material(this.ordinals[index]);
+        }
+
+        int getOldSize(int index) {
+            return this.oldSizes[index];
+        }
+
+        int getNewSize(int index) {
+            return this.newSizes[index];
+        }
+
+        /**
+         * @return The entry as a line of the form "id time MATERIAL:old:new ...", without a line break.
+         */
+        String encode() {
+            StringBuilder line = new StringBuilder();
+            line.append(this.id).append(' ').append(this.time);
+            for (int i = 0; i < this.ordinals.length; i++) {
+                line.append(' ').append(this.getMaterial(i).name()).append(':').append(this.oldSizes[i]).append(':').append(this.newSizes[i]);
+            }
+            return line.toString();
+        }
+
+        /**
+         * @param line A line written by {@link #encode()}.
+         * @return The entry. Materials that no longer exist are left out.
+         * @throws IllegalArgumentException If the line is invalid.
+         */
+        static Entry decode(String line) {
+            String[] parts = line.trim().split(" +");
+            if (parts.length < 2) {
+                throw new IllegalArgumentException(String.format("Invalid history entry: \"%s\".", line));
+            }
+            try {
+                long id = Long.parseLong(parts[0]);
+                long time = Long.parseLong(parts[1]);
+                int[] ordinals = new int[parts.length - 2];
+                int[] oldSizes = new int[parts.length - 2];
+                int[] newSizes = new int[parts.length - 2];
+                int count = 0;
+                for (int i = 2; i < parts.length; i++) {
+                    String[] change = parts[i].split(":");
+                    if (change.length != 3) {
+                        throw new IllegalArgumentException(String.format("Invalid history change: \"%s\".", parts[i]));
+                    }
+                    Material material = Material.getMaterial(change[0]);
+                    if (material == null) {
+                        continue;
+                    }
+                    ordinals[count] = material.ordinal();
+                    oldSizes[count] = Integer.parseInt(change[1]);
+                    newSizes[count] = Integer.parseInt(change[2]);
+                    count++;
+                }
+                return new Entry(id, time, Arrays.copyOf(ordinals, count), Arrays.copyOf(oldSizes, count), Arrays.copyOf(newSizes, count));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Invalid history entry: \"%s\".", line));
+            }
+        }
+
+    }
+
+}
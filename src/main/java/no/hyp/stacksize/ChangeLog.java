@@ -0,0 +1,118 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Logs each batch of applied stack sizes as a single summary, with the old and new size of every changed material
+ * and the materials that failed, instead of one line per material. The summary is formatted and logged on another
+ * thread, so that a large batch does not hold up the tick.
+ *
+ * Batches may also be appended to a journal in the plugin's directory, one JSON object per line, for tools that
+ * follow the changes.
+ */
+final class ChangeLog {
+
+    static final String FILE_NAME = "changes.log";
+
+    private final Logger logger;
+
+    private final Executor executor;
+
+    private final Path journal;
+
+    /**
+     * @param logger The logger of the summaries.
+     * @param executor Runs the logging and the journal writes, in order.
+     * @param journal The journal file.
+     */
+    ChangeLog(Logger logger, Executor executor, Path journal) {
+        this.logger = logger;
+        this.executor = executor;
+        this.journal = journal;
+    }
+
+    /**
+     * Log a batch. The changes must not be modified afterwards.
+     *
+     * @param changes The changes of the batch.
+     * @param version The stack size version after the batch.
+     * @param log Log the summary.
+     * @param journal Append the batch to the journal.
+     */
+    void submit(StackSizeChanges changes, long version, boolean log, boolean journal) {
+        if (changes.isEmpty() || !(log || journal)) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        this.executor.execute(() -> {
+            if (log) {
+                this.logger.info(summary(changes, version));
+            }
+            if (journal) {
+                try {
+                    Files.write(this.journal, (json(changes, version, time) + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    this.logger.warning(String.format("Unable to write %s: %s", FILE_NAME, e));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return A description of a batch with every changed and failed material.
+     */
+    static String summary(StackSizeChanges changes, long version) {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Applied stack size version %d: %d changed, %d failed.", version, changes.getChanges().size(), changes.getFailures().size()));
+        if (!changes.getChanges().isEmpty()) {
+            summary.append(" Changed:");
+            String separator = " ";
+            for (StackSizeChanges.Change change : changes.getChanges()) {
+                summary.append(separator).append(change.getMaterial().name()).append(' ').append(change.getOldSize()).append(" -> ").append(change.getNewSize());
+                separator = ", ";
+            }
+            summary.append('.');
+        }
+        if (!changes.getFailures().isEmpty()) {
+            summary.append(" Failed:");
+            String separator = " ";
+            for (Material material : changes.getFailures()) {
+                summary.append(separator).append(material.name());
+                separator = ", ";
+            }
+            summary.append('.');
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @return A batch as a JSON object of the form {"time": "...", "version": 1, "changed": [{"material": "BREAD",
+     * "old": 64, "new": 16}], "failed": ["..."]}. Material names need no escaping.
+     */
+    static String json(StackSizeChanges changes, long version, long time) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"time\":\"").append(Instant.ofEpochMilli(time)).append("\",\"version\":").append(version).append(",\"changed\":[");
+        String separator = "";
+        for (StackSizeChanges.Change change : changes.getChanges()) {
+            json.append(separator).append("{\"material\":\"").append(change.getMaterial().name()).append("\",\"old\":").append(change.getOldSize()).append(",\"new\":").append(change.getNewSize()).append('}');
+            separator = ",";
+        }
+        json.append("],\"failed\":[");
+        separator = "";
+        for (Material material : changes.getFailures()) {
+            json.append(separator).append('"').append(material.name()).append('"');
+            separator = ",";
+        }
+        return json.append("]}").toString();
+    }
+
+}
@@ -1,16 +1,29 @@
 package no.hyp.stacksize;
 
 import org.bukkit.Bukkit;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
 
 import java.io.IOException;
 import java.nio.file.*;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
 /**
- * This runnable watches for changes to the configuration file. When the configuration is modified,
- * the plugin reads the configuration again. This allows a user to edit the configuration and see
- * the changes in game without reloading the server.
+ * This runnable watches for changes to the configuration file and the stack size files. When the configuration
+ * is modified, the plugin reads the configuration again. This allows a user to edit the configuration and see
+ * the changes in game without reloading the server. When a stack size file is modified, only the files whose
+ * contents changed are parsed again, and the profiles are compiled on the main thread from the loaded
+ * configuration.
+ *
+ * The watcher runs for as long as the plugin is enabled. Events are debounced: the configuration is only
+ * read when no events have arrived for the debounce window, so editors that write a file in several steps
+ * cause a single reload. The file is read, parsed and compared with the applied stack sizes on the watcher
+ * thread. The main thread only receives the stack sizes that changed. Contents that are identical to the
+ * last read contents, or that were written by the plugin itself, are ignored.
  */
 class ConfigurationWatcher implements Runnable {
 
@@ -18,9 +31,48 @@ class ConfigurationWatcher implements Runnable {
 
     private final Path path;
 
-    public ConfigurationWatcher(Stacksize plugin, Path path) {
+    private final ConfigurationWriter writer;
+
+    /**
+     * The debounce window in milliseconds.
+     */
+    private volatile long debounce;
+
+    /**
+     * The fingerprint of the last contents that were read or written. Only accessed by the watcher thread.
+     */
+    private String fingerprint;
+
+    /**
+     * True if events concerning the configuration file or the stack size files have arrived since they were last
+     * read. Only accessed by the watcher thread.
+     */
+    private boolean configurationDirty = false;
+
+    private boolean shardsDirty = false;
+
+    /**
+     * @param plugin The plugin.
+     * @param path The configuration directory.
+     * @param writer The writer whose writes are ignored.
+     * @param fingerprint The fingerprint of the currently loaded configuration.
+     * @param debounce The debounce window in milliseconds.
+     */
+    public ConfigurationWatcher(Stacksize plugin, Path path, ConfigurationWriter writer, String fingerprint, long debounce) {
         this.plugin = plugin;
         this.path = path;
+        this.writer = writer;
+        this.fingerprint = fingerprint;
+        this.debounce = debounce;
+    }
+
+    /**
+     * Change the debounce window. Takes effect from the next event.
+     *
+     * @param debounce The debounce window in milliseconds.
+     */
+    public void setDebounce(long debounce) {
+        this.debounce = Math.max(0, debounce);
     }
 
     @Override
@@ -34,51 +86,23 @@ class ConfigurationWatcher implements Runnable {
             e.printStackTrace();
             return;
         }
+        this.shardsRegister(configurationWatcher);
         // Keep polling the WatchService for changes.
         while (true) {
-            WatchKey key;
             try {
-                key = configurationWatcher.take();
-                // Sleep a short time to collect duplicate events.
-                Thread.sleep(50);
+                this.pollEvents(configurationWatcher, configurationWatcher.take());
+                // Collect events until none have arrived for the debounce window.
+                WatchKey key;
+                while ((key = configurationWatcher.poll(this.debounce, TimeUnit.MILLISECONDS)) != null) {
+                    this.pollEvents(configurationWatcher, key);
+                }
+                if (this.configurationDirty || this.shardsDirty) {
+                    this.configurationChanged();
+                }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 break;
             }
-            for (WatchEvent event : key.pollEvents()) {
-                if (event.context() instanceof Path) {
-                    WatchEvent<Path> pathEvent = (WatchEvent<Path>) event;
-                    if (pathEvent.context().toString().equals("config.yml")) {
-                        // If the configuration is created, read it.
-                        if (event.kind() == ENTRY_CREATE) {
-                            Bukkit.getScheduler().runTask(plugin, (() -> {
-                                if (plugin.isLoggingConfigurationModification()) {
-                                    plugin.getLogger().info("Configuration was created.");
-                                }
-                                plugin.reloadConfig();
-                                plugin.reloadStackSizes(plugin.isLoggingStackSizeChanges());
-                            }));
-                        // If the configuration is deleted, the user is probably replacing it. Do nothing in the meanwhile.
-                        } else if (event.kind() == ENTRY_DELETE) {
-                            Bukkit.getScheduler().runTask(plugin, (() -> {
-                                if (plugin.isLoggingConfigurationModification()) {
-                                    plugin.getLogger().info("Configuration was deleted.");
-                                }
-                            }));
-                        // If the configuration is modified, reload it.
-                        } else if (event.kind() == ENTRY_MODIFY) {
-                            Bukkit.getScheduler().runTask(plugin, (() -> {
-                                if (plugin.isLoggingConfigurationModification()) {
-                                    plugin.getLogger().info("Configuration was modified.");
-                                }
-                                plugin.reloadConfig();
-                                plugin.reloadStackSizes(plugin.isLoggingStackSizeChanges());
-                            }));
-                        }
-                    }
-                }
-            }
-            key.reset();
         }
         // Finish by closing the WatchService.
         try {
@@ -87,7 +111,7 @@ class ConfigurationWatcher implements Runnable {
             e.printStackTrace();
             Bukkit.getScheduler().runTask(plugin, () -> {
                 plugin.getLogger().severe("Error closing configuration watcher.");
-                if (plugin.getConfig().getBoolean("required")) {
+                if (plugin.getSettings().isRequired()) {
                     plugin.getLogger().severe("Plugin must work. Shutting down.");
                     Bukkit.getScheduler().runTask(plugin, Bukkit::shutdown);
                 }
@@ -95,4 +119,143 @@ class ConfigurationWatcher implements Runnable {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Watch the stack size directory too, if it exists. The plugin's directory is not watched recursively.
+     */
+    private void shardsRegister(WatchService configurationWatcher) {
+        Path directory = this.path.resolve(StackSizeShards.DIRECTORY);
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try {
+            directory.register(configurationWatcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to watch " + directory + ".", e);
+        }
+    }
+
+    /**
+     * Mark the configuration or the stack size files as changed if any of the key's events concern them.
+     */
+    private void pollEvents(WatchService configurationWatcher, WatchKey key) {
+        boolean shards = !this.path.equals(key.watchable());
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (!(event.context() instanceof Path)) {
+                continue;
+            }
+            String name = event.context().toString();
+            if (shards) {
+                if (StackSizeShards.isShard(name)) {
+                    this.plugin.getStatistics().watcherEvent();
+                    this.shardsDirty = true;
+                }
+            } else if (name.equals("config.yml")) {
+                this.plugin.getStatistics().watcherEvent();
+                this.configurationDirty = true;
+            } else if (name.equals(StackSizeShards.DIRECTORY)) {
+                // The directory was created, deleted or replaced.
+                this.plugin.getStatistics().watcherEvent();
+                this.shardsDirty = true;
+                if (event.kind() == ENTRY_CREATE) {
+                    this.shardsRegister(configurationWatcher);
+                }
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Read the changed files after they have settled, and hand any changed stack sizes to the main thread. If
+     * only stack size files changed, the main thread compiles them with the loaded configuration.
+     */
+    private void configurationChanged() {
+        StackSizeShards shards = plugin.getShards();
+        if (this.shardsDirty) {
+            this.shardsDirty = false;
+            shards = shards.update(this.path.resolve(StackSizeShards.DIRECTORY), plugin.getLogger());
+        }
+        YamlConfiguration configuration = null;
+        if (this.configurationDirty) {
+            this.configurationDirty = false;
+            configuration = this.configurationRead();
+        }
+        if (configuration != null) {
+            this.configurationApply(configuration, shards);
+        } else if (shards != plugin.getShards()) {
+            StackSizeShards changedShards = shards;
+            Bukkit.getScheduler().runTask(plugin, (() -> {
+                if (plugin.isLoggingConfigurationModification()) {
+                    plugin.getLogger().info("Stack size files were modified.");
+                }
+                StackSizeChanges changes = plugin.reloadStackSizes(changedShards, plugin.isLoggingStackSizeChanges());
+                plugin.getStatistics().watcherReloaded();
+                if (plugin.isLoggingConfigurationModification()) {
+                    plugin.getLogger().info(changes.summary());
+                }
+            }));
+        }
+    }
+
+    /**
+     * Read the configuration file.
+     *
+     * @return The parsed configuration, or null if it is unchanged, was written by the plugin, or cannot be read.
+     */
+    private YamlConfiguration configurationRead() {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(this.path.resolve("config.yml"));
+        } catch (NoSuchFileException e) {
+            // If the configuration is deleted, the user is probably replacing it. Do nothing in the meanwhile.
+            Bukkit.getScheduler().runTask(plugin, (() -> {
+                if (plugin.isLoggingConfigurationModification()) {
+                    plugin.getLogger().info("Configuration was deleted.");
+                }
+            }));
+            return null;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to read configuration.", e);
+            return null;
+        }
+        String fingerprint = ConfigurationWriter.fingerprint(contents);
+        // Skip contents that are already loaded, or that the plugin wrote itself. A write is consumed even if it did
+        // not change the file, so that it is not mistaken for a later edit.
+        boolean own = this.writer.consumeOwnWrite(fingerprint);
+        if (fingerprint.equals(this.fingerprint)) {
+            return null;
+        }
+        this.fingerprint = fingerprint;
+        if (own) {
+            return null;
+        }
+        try {
+            return plugin.configurationParse(contents);
+        } catch (InvalidConfigurationException e) {
+            plugin.getLogger().warning(String.format("Configuration is invalid and was not reloaded: %s", e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Compile a changed configuration with the stack size files, and hand any changed stack sizes to the main
+     * thread.
+     */
+    private void configurationApply(YamlConfiguration configuration, StackSizeShards shards) {
+        String fingerprint = this.fingerprint;
+        StackSizeProfiles profiles = plugin.configurationReadProfiles(configuration, shards);
+        String profile = plugin.configurationSelectProfile(configuration, profiles, profiles.scheduled(LocalTime.now()));
+        StackSizeSnapshot snapshot = plugin.getStackSizeSnapshot();
+        StackSizeTable changed = Stacksize.changedStackSizes(profiles.get(profile), snapshot.getApplied(), snapshot.getVanilla());
+        Bukkit.getScheduler().runTask(plugin, (() -> {
+            if (plugin.isLoggingConfigurationModification()) {
+                plugin.getLogger().info("Configuration was modified.");
+            }
+            StackSizeChanges changes = plugin.applyConfiguration(configuration, fingerprint, shards, profiles, profile, changed, snapshot);
+            plugin.getStatistics().watcherReloaded();
+            if (plugin.isLoggingConfigurationModification()) {
+                plugin.getLogger().info(changes.summary());
+            }
+        }));
+    }
+
+}
@@ -0,0 +1,184 @@
+package no.hyp.stacksize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the configuration file on a background thread. Writes are coalesced: if several writes are requested
+ * before the thread gets to them, only the latest contents are written. Each write goes to a temporary file which
+ * is then atomically moved over the configuration file, so a reader never sees a partially written file.
+ *
+ * The fingerprints of written contents are remembered until the configuration watcher has seen them, so that it
+ * can recognize and ignore changes made by the plugin itself. Once the watcher has seen a write, that write and the
+ * ones before it are forgotten, so that a later edit back to contents the plugin once wrote is still applied.
+ */
+final class ConfigurationWriter {
+
+    /**
+     * The number of unseen write fingerprints to remember.
+     */
+    private static final int FINGERPRINTS = 16;
+
+    private final Path file;
+
+    private final Path temporaryFile;
+
+    private final Logger logger;
+
+    private final ExecutorService executor;
+
+    /**
+     * The latest contents that have not been written yet.
+     */
+    private final AtomicReference<String> pending = new AtomicReference<>();
+
+    /**
+     * True if a write task is submitted but has not yet taken the pending contents.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Fingerprints of written contents the watcher has not seen yet, oldest first. Guarded by itself.
+     */
+    private final ArrayDeque<String> fingerprints = new ArrayDeque<>();
+
+    ConfigurationWriter(Path file, Logger logger) {
+        this.file = file;
+        this.temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Stacksize configuration writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Compute a fingerprint of file contents.
+     *
+     * @param contents The contents.
+     * @return A hex encoded SHA-256 hash.
+     */
+    static String fingerprint(byte[] contents) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(contents);
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Request that the configuration file is written. Returns immediately.
+     *
+     * @param contents The new contents of the configuration file.
+     * @return The fingerprint of the contents.
+     */
+    String write(String contents) {
+        // Remember the fingerprint before the file changes, so the watcher can never see it first.
+        String fingerprint = fingerprint(contents.getBytes(StandardCharsets.UTF_8));
+        this.remember(fingerprint);
+        this.pending.set(contents);
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.executor.execute(this::drain);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Run other file output on the writer thread, after the writes requested before it. Close waits for it to
+     * finish like it does for writes.
+     *
+     * @param task The task.
+     */
+    void submit(Runnable task) {
+        this.executor.execute(task);
+    }
+
+    /**
+     * Check whether the contents of the configuration file were written by this writer and not yet seen. If they
+     * were, they and every earlier write are forgotten, since the file has moved past them.
+     *
+     * @param fingerprint The fingerprint of the current contents of the configuration file.
+     * @return True if the contents are an unseen write of this writer.
+     */
+    boolean consumeOwnWrite(String fingerprint) {
+        synchronized (this.fingerprints) {
+            if (!this.fingerprints.contains(fingerprint)) {
+                return false;
+            }
+            // Earlier writes were superseded by the one that was seen.
+            String oldest;
+            do {
+                oldest = this.fingerprints.pollFirst();
+            } while (!oldest.equals(fingerprint));
+            return true;
+        }
+    }
+
+    private void remember(String fingerprint) {
+        synchronized (this.fingerprints) {
+            this.fingerprints.addLast(fingerprint);
+            if (this.fingerprints.size() > FINGERPRINTS) {
+                this.fingerprints.pollFirst();
+            }
+        }
+    }
+
+    /**
+     * Write the latest pending contents. Runs on the writer thread.
+     */
+    private void drain() {
+        // Clear the flag first, so that a write requested from now on schedules another drain.
+        this.scheduled.set(false);
+        String contents = this.pending.getAndSet(null);
+        if (contents == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(this.file.getParent());
+            Files.write(this.temporaryFile, contents.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(this.temporaryFile, this.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(this.temporaryFile, this.file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            this.logger.log(Level.SEVERE, "Could not save configuration to " + this.file + ".", e);
+        }
+    }
+
+    /**
+     * Write any pending contents and stop the writer thread. Blocks until the writes are done.
+     */
+    void close() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                this.logger.severe("Timed out while saving the configuration.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
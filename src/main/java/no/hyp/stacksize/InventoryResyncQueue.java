@@ -0,0 +1,253 @@
+package no.hyp.stacksize;
+
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.InventoryView;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the players whose inventories must be resent to the client, and resends each of them at most once
+ * when run. The queue is run by a repeating task once every tick, so any number of clicks by a player during a
+ * tick cause a single update the next tick.
+ *
+ * A player is either queued for a full inventory update, or for an update of a few slots in one inventory view
+ * and the cursor. Slot updates fall back to a full update if the slots do not fit, if the player opens another
+ * view before the queue is run, or if the server does not support sending single slots.
+ *
+ * The entry of a player is found through an open addressing table of entry indices keyed by identity hash code,
+ * so that queueing many players in one tick stays linear. Queueing does not allocate unless the queue must grow.
+ * The queue is only accessed from the main thread.
+ */
+final class InventoryResyncQueue implements Runnable {
+
+    /**
+     * The maximum number of slots that are resent individually to one player in one tick.
+     */
+    private static final int SLOTS = 16;
+
+    private final VersionAdapter adapter;
+
+    private final Logger logger;
+
+    private final StacksizeStatistics statistics;
+
+    private Player[] players = new Player[16];
+
+    /**
+     * The inventory view that queued slots belong to.
+     */
+    private InventoryView[] views = new InventoryView[16];
+
+    private int[][] slots = new int[16][SLOTS];
+
+    private int[] slotCounts = new int[16];
+
+    /**
+     * True if the whole inventory must be resent.
+     */
+    private boolean[] full = new boolean[16];
+
+    private int size = 0;
+
+    /**
+     * The entry index plus one of every queued player, by identity hash code with linear probing. Zero is a free
+     * bucket. Twice as long as the queue, so that it is at most half full.
+     */
+    private int[] buckets = new int[32];
+
+    InventoryResyncQueue(VersionAdapter adapter, Logger logger, StacksizeStatistics statistics) {
+        this.adapter = adapter;
+        this.logger = logger;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Mark a player's whole inventory as needing a resend.
+     *
+     * @param player The player.
+     */
+    void add(Player player) {
+        this.full[this.index(player)] = true;
+    }
+
+    /**
+     * Mark a slot in a player's inventory view, and the player's cursor, as needing a resend.
+     *
+     * @param player The player.
+     * @param view The inventory view that the slot is in.
+     * @param rawSlot The raw slot number in the view.
+     */
+    void addSlot(Player player, InventoryView view, int rawSlot) {
+        int i = this.index(player);
+        if (!this.addView(i, view)) {
+            return;
+        }
+        // Clicks outside of the view have a negative raw slot. Only the cursor, which is always resent, changes.
+        if (rawSlot < 0) {
+            return;
+        }
+        int[] slots = this.slots[i];
+        int count = this.slotCounts[i];
+        for (int j = 0; j < count; j++) {
+            if (slots[j] == rawSlot) {
+                return;
+            }
+        }
+        if (count == SLOTS) {
+            this.full[i] = true;
+            return;
+        }
+        slots[count] = rawSlot;
+        this.slotCounts[i] = count + 1;
+    }
+
+    /**
+     * Mark a player's cursor as needing a resend, with no slots of the inventory view.
+     *
+     * @param player The player.
+     * @param view The player's inventory view.
+     */
+    void addCursor(Player player, InventoryView view) {
+        this.addView(this.index(player), view);
+    }
+
+    /**
+     * Set the view of an entry, falling back to a full update if slots of another view are queued.
+     *
+     * @return True if slots of the view can be queued.
+     */
+    private boolean addView(int i, InventoryView view) {
+        if (this.full[i]) {
+            return false;
+        }
+        if (this.views[i] == null) {
+            this.views[i] = view;
+        } else if (this.views[i] != view) {
+            this.full[i] = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the entry of a player, adding one if the player is not queued.
+     */
+    private int index(Player player) {
+        int mask = this.buckets.length - 1;
+        int bucket = bucket(player, mask);
+        while (this.buckets[bucket] != 0) {
+            int index = this.buckets[bucket] - 1;
+            if (this.players[index] == player) {
+                return index;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        if (this.size == this.players.length) {
+            this.grow();
+            mask = this.buckets.length - 1;
+            bucket = bucket(player, mask);
+            while (this.buckets[bucket] != 0) {
+                bucket = (bucket + 1) & mask;
+            }
+        }
+        int i = this.size++;
+        this.statistics.resyncScheduled();
+        this.players[i] = player;
+        this.buckets[bucket] = i + 1;
+        this.views[i] = null;
+        this.slotCounts[i] = 0;
+        this.full[i] = false;
+        return i;
+    }
+
+    private static int bucket(Player player, int mask) {
+        // Spread the identity hash code, whose low bits may be poorly distributed.
+        int hash = System.identityHashCode(player) * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & mask;
+    }
+
+    private void grow() {
+        int length = this.players.length;
+        Player[] players = new Player[length * 2];
+        InventoryView[] views = new InventoryView[length * 2];
+        int[][] slots = new int[length * 2][];
+        int[] slotCounts = new int[length * 2];
+        boolean[] full = new boolean[length * 2];
+        System.arraycopy(this.players, 0, players, 0, length);
+        System.arraycopy(this.views, 0, views, 0, length);
+        System.arraycopy(this.slots, 0, slots, 0, length);
+        System.arraycopy(this.slotCounts, 0, slotCounts, 0, length);
+        System.arraycopy(this.full, 0, full, 0, length);
+        for (int i = length; i < slots.length; i++) {
+            slots[i] = new int[SLOTS];
+        }
+        // Rehash the queued players into a table twice as long as the new queue.
+        int[] buckets = new int[players.length * 2];
+        int mask = buckets.length - 1;
+        for (int i = 0; i < this.size; i++) {
+            int bucket = bucket(players[i], mask);
+            while (buckets[bucket] != 0) {
+                bucket = (bucket + 1) & mask;
+            }
+            buckets[bucket] = i + 1;
+        }
+        this.buckets = buckets;
+        this.players = players;
+        this.views = views;
+        this.slots = slots;
+        this.slotCounts = slotCounts;
+        this.full = full;
+    }
+
+    /**
+     * @return The number of players waiting for a resend.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Forget every queued player without resending.
+     */
+    void clear() {
+        for (int i = 0; i < this.size; i++) {
+            this.players[i] = null;
+            this.views[i] = null;
+        }
+        Arrays.fill(this.buckets, 0);
+        this.size = 0;
+    }
+
+    /**
+     * Resend the queued slots or inventory of every queued player and empty the queue.
+     */
+    @Override
+    public void run() {
+        this.statistics.sampleResyncRate(System.nanoTime());
+        for (int i = 0; i < this.size; i++) {
+            Player player = this.players[i];
+            InventoryView view = this.views[i];
+            this.players[i] = null;
+            this.views[i] = null;
+            if (!player.isOnline()) {
+                continue;
+            }
+            if (this.full[i] || !this.adapter.canUpdateSlots() || player.getOpenInventory() != view) {
+                player.updateInventory();
+                continue;
+            }
+            try {
+                this.adapter.updateSlots(player, this.slots[i], this.slotCounts[i]);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                this.statistics.reflectionFailed();
+                this.logger.log(Level.WARNING, "Unable to resend inventory slots. Resending the whole inventory.", e);
+                player.updateInventory();
+            }
+        }
+        Arrays.fill(this.buckets, 0);
+        this.size = 0;
+    }
+
+}
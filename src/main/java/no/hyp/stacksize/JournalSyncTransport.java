@@ -0,0 +1,89 @@
+package no.hyp.stacksize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * A sync transport over a directory shared by every node, such as a network mount, or a local directory when the
+ * nodes run on one machine. The authority appends diffs to the journal file in the directory, and followers poll
+ * it. Each follower writes the version it has acknowledged to a file of its own in the acks directory.
+ */
+final class JournalSyncTransport implements SyncTransport {
+
+    private static final String JOURNAL = "journal.log";
+
+    private static final String ACKNOWLEDGEMENTS = "acks";
+
+    private static final String ACKNOWLEDGEMENT_EXTENSION = ".ack";
+
+    private final Path directory;
+
+    private final SyncJournal journal;
+
+    JournalSyncTransport(Path directory, Logger logger) {
+        this.directory = directory;
+        this.journal = new SyncJournal(directory.resolve(JOURNAL), logger);
+    }
+
+    @Override
+    public void publish(StackSizeDiff diff) throws IOException {
+        this.journal.append(diff);
+    }
+
+    @Override
+    public void compact(long acknowledged) throws IOException {
+        this.journal.compact(acknowledged);
+    }
+
+    @Override
+    public List<StackSizeDiff> fetch(long version) throws IOException {
+        return this.journal.after(version);
+    }
+
+    @Override
+    public void acknowledge(String node, long version) throws IOException {
+        Path file = this.directory.resolve(ACKNOWLEDGEMENTS).resolve(node + ACKNOWLEDGEMENT_EXTENSION);
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+        Files.write(temporaryFile, Long.toString(version).getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public Map<String, Long> acknowledgements() throws IOException {
+        Map<String, Long> acknowledgements = new TreeMap<>();
+        Path directory = this.directory.resolve(ACKNOWLEDGEMENTS);
+        if (!Files.isDirectory(directory)) {
+            return acknowledgements;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + ACKNOWLEDGEMENT_EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    long version = Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+                    acknowledgements.put(name.substring(0, name.length() - ACKNOWLEDGEMENT_EXTENSION.length()), version);
+                } catch (NumberFormatException e) {
+                    // Skip a file that is being replaced.
+                }
+            }
+        }
+        return acknowledgements;
+    }
+
+    @Override
+    public void close() {}
+
+}
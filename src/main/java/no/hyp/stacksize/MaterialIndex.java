@@ -0,0 +1,139 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * An index of material names, built once. It holds a sorted array of item names for prefix completion, and a
+ * case-insensitive map for exact lookups which also accepts namespaced names ("minecraft:oak_boat") and legacy
+ * names. Legacy materials are converted when the index is built, so the index is immutable and may be used from any
+ * thread without calling into the server.
+ */
+final class MaterialIndex {
+
+    private static final String NAMESPACE = "minecraft:";
+
+    /**
+     * The names of all modern materials that are items, sorted.
+     */
+    private final String[] itemNames;
+
+    /**
+     * Lower case names, with and without namespace, to materials. Legacy names map to their modern materials.
+     */
+    private final Map<String, Material> materials;
+
+    /**
+     * Legacy materials to their modern materials, for names only {@link Material#matchMaterial(String)} accepts.
+     */
+    private final Map<Material, Material> legacyMaterials;
+
+    private MaterialIndex(String[] itemNames, Map<String, Material> materials, Map<Material, Material> legacyMaterials) {
+        this.itemNames = itemNames;
+        this.materials = materials;
+        this.legacyMaterials = legacyMaterials;
+    }
+
+    /**
+     * Build an index of every material. Must be called on the main thread, since legacy materials are converted
+     * by the server.
+     *
+     * @param fromLegacy Converts a legacy material to its modern material.
+     * @return The index.
+     */
+    static MaterialIndex build(UnaryOperator<Material> fromLegacy) {
+        List<String> itemNames = new ArrayList<>();
+        Map<String, Material> materials = new HashMap<>();
+        Map<Material, Material> legacyMaterials = new EnumMap<>(Material.class);
+        // Modern names take precedence over legacy names.
+        for (Material material : Material.values()) {
+            if (material.isLegacy()) {
+                continue;
+            }
+            String name = material.name().toLowerCase(Locale.ROOT);
+            materials.put(name, material);
+            materials.put(NAMESPACE + name, material);
+            if (material.isItem()) {
+                itemNames.add(material.name());
+            }
+        }
+        for (Material material : Material.values()) {
+            if (!material.isLegacy()) {
+                continue;
+            }
+            String legacyName = material.name().toLowerCase(Locale.ROOT);
+            String name = legacyName.substring(Material.LEGACY_PREFIX.length());
+            Material modern = fromLegacy.apply(material);
+            legacyMaterials.put(material, modern);
+            materials.putIfAbsent(legacyName, modern);
+            materials.putIfAbsent(name, modern);
+            materials.putIfAbsent(NAMESPACE + name, modern);
+        }
+        String[] names = itemNames.toArray(new String[0]);
+        Arrays.sort(names);
+        return new MaterialIndex(names, materials, legacyMaterials);
+    }
+
+    /**
+     * Find a material by name, ignoring case. Accepts namespaced and legacy names. Falls back to
+     * {@link Material#matchMaterial(String)} for names written in another way, such as with spaces.
+     *
+     * @param name The material name.
+     * @return The material, or null if no material has the name.
+     */
+    Material lookup(String name) {
+        Material material = this.materials.get(name);
+        if (material == null) {
+            material = this.materials.get(name.toLowerCase(Locale.ROOT));
+        }
+        if (material == null) {
+            material = Material.matchMaterial(name);
+        }
+        if (material != null && material.isLegacy()) {
+            material = this.legacyMaterials.get(material);
+        }
+        return material;
+    }
+
+    /**
+     * Find the names of all items starting with a prefix, ignoring case.
+     *
+     * @param prefix The prefix.
+     * @return The matching item names, sorted.
+     */
+    List<String> complete(String prefix) {
+        String upperPrefix = prefix.toUpperCase(Locale.ROOT);
+        int from = this.lowerBound(upperPrefix);
+        int to = from;
+        while (to < this.itemNames.length && this.itemNames[to].startsWith(upperPrefix)) {
+            to++;
+        }
+        return new ArrayList<>(Arrays.asList(this.itemNames).subList(from, to));
+    }
+
+    /**
+     * @return The index of the first item name that is not less than the key.
+     */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = this.itemNames.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.itemNames[middle].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+}
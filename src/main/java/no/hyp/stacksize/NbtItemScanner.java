@@ -0,0 +1,227 @@
+package no.hyp.stacksize;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the item stacks in uncompressed NBT data, such as a chunk or a player file, without building a tree. An
+ * item stack is any compound holding an "id" string and a "Count" byte, so that items in containers, entities,
+ * ender chests and items nested in other items, like shulker boxes, are all found. The visitor is given the
+ * offset of the count byte, so that the count can be changed in place.
+ *
+ * The trade offers of villagers and wandering traders hold item stacks that are prices and results rather than
+ * items, so compounds named "Offers" are skipped without reporting their stacks.
+ */
+final class NbtItemScanner {
+
+    /**
+     * Receives the item stacks found by a scan.
+     */
+    interface Visitor {
+
+        /**
+         * @param id The namespaced item id, such as "minecraft:bread".
+         * @param count The stack size, read as an unsigned byte.
+         * @param countOffset The offset of the count byte in the data.
+         */
+        void item(String id, int count, int countOffset);
+
+    }
+
+    private static final int TAG_END = 0;
+
+    private static final int TAG_BYTE = 1;
+
+    private static final int TAG_SHORT = 2;
+
+    private static final int TAG_INT = 3;
+
+    private static final int TAG_LONG = 4;
+
+    private static final int TAG_FLOAT = 5;
+
+    private static final int TAG_DOUBLE = 6;
+
+    private static final int TAG_BYTE_ARRAY = 7;
+
+    private static final int TAG_STRING = 8;
+
+    private static final int TAG_LIST = 9;
+
+    private static final int TAG_COMPOUND = 10;
+
+    private static final int TAG_INT_ARRAY = 11;
+
+    private static final int TAG_LONG_ARRAY = 12;
+
+    /**
+     * Minecraft refuses data nested deeper than this.
+     */
+    private static final int MAX_DEPTH = 512;
+
+    private static final byte[] ID = "id".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] COUNT = "Count".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] OFFERS = "Offers".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] data;
+
+    private final int limit;
+
+    private final Visitor visitor;
+
+    private int position;
+
+    private NbtItemScanner(byte[] data, int length, Visitor visitor) {
+        this.data = data;
+        this.limit = length;
+        this.visitor = visitor;
+    }
+
+    /**
+     * Scan NBT data with a named root compound.
+     *
+     * @param data The data.
+     * @param length The length of the data in the array.
+     * @param visitor Receives every item stack.
+     * @throws IllegalArgumentException If the data is not valid NBT.
+     */
+    static void scan(byte[] data, int length, Visitor visitor) {
+        NbtItemScanner scanner = new NbtItemScanner(data, length, visitor);
+        if (scanner.readByte() != TAG_COMPOUND) {
+            throw new IllegalArgumentException("The root tag is not a compound.");
+        }
+        scanner.skip(scanner.readUnsignedShort());
+        scanner.compound(0, true);
+    }
+
+    /**
+     * @param items Report the item stacks in the compound.
+     */
+    private void compound(int depth, boolean items) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("The data is nested too deep.");
+        }
+        int idOffset = -1;
+        int idLength = 0;
+        int countOffset = -1;
+        while (true) {
+            int type = this.readByte();
+            if (type == TAG_END) {
+                break;
+            }
+            int nameLength = this.readUnsignedShort();
+            int name = this.position;
+            this.skip(nameLength);
+            if (type == TAG_STRING && this.nameEquals(name, nameLength, ID)) {
+                idLength = this.readUnsignedShort();
+                idOffset = this.position;
+                this.skip(idLength);
+            } else if (type == TAG_BYTE && this.nameEquals(name, nameLength, COUNT)) {
+                countOffset = this.position;
+                this.skip(1);
+            } else {
+                this.payload(type, depth, items && !(type == TAG_COMPOUND && this.nameEquals(name, nameLength, OFFERS)));
+            }
+        }
+        if (items && idOffset >= 0 && countOffset >= 0) {
+            String id = new String(this.data, idOffset, idLength, StandardCharsets.UTF_8);
+            this.visitor.item(id, this.data[countOffset] & 0xFF, countOffset);
+        }
+    }
+
+    private void payload(int type, int depth, boolean items) {
+        switch (type) {
+            case TAG_BYTE:
+                this.skip(1);
+                break;
+            case TAG_SHORT:
+                this.skip(2);
+                break;
+            case TAG_INT:
+            case TAG_FLOAT:
+                this.skip(4);
+                break;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                this.skip(8);
+                break;
+            case TAG_BYTE_ARRAY:
+                this.skip(this.readLength());
+                break;
+            case TAG_STRING:
+                this.skip(this.readUnsignedShort());
+                break;
+            case TAG_LIST: {
+                int elementType = this.readByte();
+                int length = this.readLength();
+                for (int i = 0; i < length; i++) {
+                    if (elementType == TAG_COMPOUND) {
+                        this.compound(depth + 1, items);
+                    } else {
+                        this.payload(elementType, depth + 1, items);
+                    }
+                }
+                break;
+            }
+            case TAG_COMPOUND:
+                this.compound(depth + 1, items);
+                break;
+            case TAG_INT_ARRAY:
+                this.skip(4 * this.readLength());
+                break;
+            case TAG_LONG_ARRAY:
+                this.skip(8 * this.readLength());
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown tag type %d at offset %d.", type, this.position));
+        }
+    }
+
+    private boolean nameEquals(int offset, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (this.data[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readByte() {
+        this.check(1);
+        return this.data[this.position++];
+    }
+
+    private int readUnsignedShort() {
+        this.check(2);
+        int value = (this.data[this.position] & 0xFF) << 8 | (this.data[this.position + 1] & 0xFF);
+        this.position += 2;
+        return value;
+    }
+
+    private int readLength() {
+        this.check(4);
+        int value = (this.data[this.position] & 0xFF) << 24 | (this.data[this.position + 1] & 0xFF) << 16
+                | (this.data[this.position + 2] & 0xFF) << 8 | (this.data[this.position + 3] & 0xFF);
+        this.position += 4;
+        if (value < 0) {
+            throw new IllegalArgumentException(String.format("Negative length at offset %d.", this.position - 4));
+        }
+        return value;
+    }
+
+    private void skip(int length) {
+        this.check(length);
+        this.position += length;
+    }
+
+    private void check(int length) {
+        if (length < 0 || length > this.limit - this.position) {
+            throw new IllegalArgumentException("The data ends early.");
+        }
+    }
+
+}
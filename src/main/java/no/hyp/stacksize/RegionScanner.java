@@ -0,0 +1,599 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Finds stacks that are larger than their maximum stack size in the saved data of worlds, without a server:
+ * the chunks in region/*.mca, including the Nether and End regions of a world folder, and the players in
+ * playerdata/*.dat. Chunks in unloaded regions and offline players are out of reach of the plugin's normalizer.
+ *
+ * The maximum stack sizes are compiled from config.yml and stacksizes.d like the plugin does, or read from a table
+ * exported with {@code /stacksize export}. Tags cannot be resolved without a server, so tag rules are skipped
+ * with a warning, and an exported table should be used when the configuration has tag rules.
+ *
+ * When the configuration gives worlds their own stack sizes, the chunks of a world folder are measured against the
+ * stack sizes of the world with the folder's name. Players can carry their inventory and ender chest into any
+ * world, so player files are measured against the largest maximum of any world. An exported table holds only the
+ * base stack sizes, so world stack sizes are not known when one is used.
+ *
+ * Region files are memory mapped, and the files are scanned in parallel, one file per task. Every oversized stack
+ * is reported. With the fix option, oversized stacks are clamped to their maximum stack size and the excess items
+ * are removed, since there is no inventory to put them in. A clamped chunk is compressed again and written in
+ * place, or appended to the region file if it no longer fits in its sectors. The server must be stopped when
+ * fixing, and the worlds should be backed up first.
+ *
+ * Run with {@code java -cp spigot.jar:plugins/Stacksize.jar no.hyp.stacksize.RegionScanner world world_nether
+ * config=plugins/Stacksize/config.yml}. Options are given as key=value pairs, and every other argument is a world
+ * folder. See {@link #DEFAULTS}.
+ */
+final class RegionScanner {
+
+    /**
+     * The options and their default values.
+     */
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        // The plugin configuration to compile the maximum stack sizes from.
+        DEFAULTS.put("config", "plugins/Stacksize/config.yml");
+        // The profile to apply. Empty for the profile selected by the configuration.
+        DEFAULTS.put("profile", "");
+        // A table exported with /stacksize export, used instead of the configuration. Empty for none.
+        DEFAULTS.put("table", "");
+        // The number of files scanned at once.
+        DEFAULTS.put("threads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        // Clamp oversized stacks and write the files.
+        DEFAULTS.put("fix", "false");
+    }
+
+    private static final int SECTOR = 4096;
+
+    /**
+     * The location table and the timestamp table.
+     */
+    private static final int HEADER = 2 * SECTOR;
+
+    private static final int CHUNKS = 1024;
+
+    private static final int COMPRESSION_GZIP = 1;
+
+    private static final int COMPRESSION_ZLIB = 2;
+
+    private static final int COMPRESSION_NONE = 3;
+
+    private static final Pattern REGION = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+
+    private final Map<String, Material> materials;
+
+    private final boolean fix;
+
+    private RegionScanner(Map<String, Material> materials, boolean fix) {
+        this.materials = materials;
+        this.fix = fix;
+    }
+
+    public static void main(String[] arguments) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        List<Path> worlds = new ArrayList<>();
+        for (String argument : arguments) {
+            String[] pair = argument.split("=", 2);
+            if (pair.length != 2) {
+                worlds.add(Paths.get(argument));
+                continue;
+            }
+            if (!DEFAULTS.containsKey(pair[0])) {
+                System.err.println(String.format("Unknown option \"%s\". Options: %s", argument, DEFAULTS.keySet()));
+                System.exit(1);
+            }
+            options.put(pair[0], pair[1]);
+        }
+        if (worlds.isEmpty()) {
+            System.err.println(String.format("Usage: RegionScanner <world>... [key=value]... Options: %s", DEFAULTS.keySet()));
+            System.exit(1);
+        }
+        Logger logger = Logger.getLogger("Stacksize");
+        StackSizeTable table;
+        WorldOverlays overlays;
+        if (options.get("table").isEmpty()) {
+            Path file = Paths.get(options.get("config"));
+            YamlConfiguration configuration = new YamlConfiguration();
+            configuration.loadFromString(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            StackSizeRules rules = configuredRules(configuration, file, options.get("profile"), logger);
+            table = rules.getTable();
+            ConfigurationSection section = configuration.getConfigurationSection("worlds");
+            overlays = section == null ? WorldOverlays.empty() : WorldOverlays.compile(rules, section, Material::matchMaterial, tags(logger), logger);
+        } else {
+            table = tableStackSizes(Paths.get(options.get("table")));
+            overlays = WorldOverlays.empty();
+        }
+        Map<String, Material> materials = new HashMap<>();
+        for (Material material : Material.values()) {
+            if (material.isItem() && !material.isLegacy()) {
+                materials.put(material.getKey().toString(), material);
+            }
+        }
+        // Players may be in any world, so their stacks are only oversized if they are in every world.
+        int[] players = maximums(table);
+        for (String world : overlays.getWorlds()) {
+            int[] maximums = maximums(overlays.getTable(world));
+            for (int i = 0; i < players.length; i++) {
+                players[i] = Math.max(players[i], maximums[i]);
+            }
+        }
+        boolean fix = Boolean.parseBoolean(options.get("fix"));
+        List<Path> files = new ArrayList<>();
+        List<int[]> limits = new ArrayList<>();
+        for (Path world : worlds) {
+            String name = world.toAbsolutePath().normalize().getFileName().toString();
+            String context = overlays.context(name);
+            int[] maximums = maximums(context != null ? overlays.getTable(context) : table);
+            for (String directory : Arrays.asList("region", "DIM-1/region", "DIM1/region")) {
+                for (Path file : list(world.resolve(directory), ".mca")) {
+                    files.add(file);
+                    limits.add(maximums);
+                }
+            }
+            for (Path file : list(world.resolve("playerdata"), ".dat")) {
+                files.add(file);
+                limits.add(players);
+            }
+        }
+        new RegionScanner(materials, fix).run(files, limits, Integer.parseInt(options.get("threads")));
+        System.exit(0);
+    }
+
+    /**
+     * @return The maximum stack size of each material by ordinal.
+     */
+    private static int[] maximums(StackSizeTable table) {
+        int[] maximums = new int[Material.values().length];
+        for (Material material : Material.values()) {
+            maximums[material.ordinal()] = table.get(material, material.getMaxStackSize());
+        }
+        return maximums;
+    }
+
+    /**
+     * @return Skips tag rules with a warning, since tags cannot be resolved without a server.
+     */
+    private static Function<String, Collection<Material>> tags(Logger logger) {
+        return tag -> {
+            logger.warning(String.format("Tags cannot be resolved without a server. Skipping #%s. Use an exported table instead.", tag));
+            return Collections.emptyList();
+        };
+    }
+
+    /**
+     * Compile the rules of a profile from a plugin configuration and its stack size files.
+     */
+    private static StackSizeRules configuredRules(YamlConfiguration configuration, Path file, String profile, Logger logger) throws IOException {
+        Function<String, Collection<Material>> tags = tags(logger);
+        StackSizeRules rules = StackSizeRules.empty();
+        ConfigurationSection stackSizes = configuration.getConfigurationSection("stackSizes");
+        if (stackSizes != null) {
+            rules = StackSizeRules.compile(rules, "stackSizes", stackSizes.getValues(false), Material::matchMaterial, tags, logger);
+        }
+        rules = StackSizeShards.empty().update(file.resolveSibling(StackSizeShards.DIRECTORY), logger).compile(rules, Material::matchMaterial, tags, logger);
+        if (profile.isEmpty()) {
+            profile = configuration.getString("profile", StackSizeProfiles.DEFAULT);
+        }
+        if (!profile.equals(StackSizeProfiles.DEFAULT)) {
+            ConfigurationSection section = configuration.getConfigurationSection("profiles." + profile);
+            if (section == null) {
+                throw new IllegalArgumentException(String.format("There is no profile \"%s\" in %s.", profile, file));
+            }
+            rules = StackSizeRules.compile(rules, "profile " + profile, section.getValues(false), Material::matchMaterial, tags, logger);
+        }
+        return rules;
+    }
+
+    /**
+     * Read the maximum stack sizes from an exported table.
+     */
+    private static StackSizeTable tableStackSizes(Path file) throws IOException, InvalidConfigurationException {
+        String fileName = file.getFileName().toString();
+        if (!StackSizeTableFile.isSupported(fileName)) {
+            throw new IllegalArgumentException(String.format("%s is not a .yml, .yaml or .csv file.", file));
+        }
+        StackSizeTable table = new StackSizeTable();
+        for (StackSizeTableFile.Entry entry : StackSizeTableFile.read(fileName, Files.readAllBytes(file))) {
+            Material material = Material.matchMaterial(entry.getMaterial());
+            if (material == null) {
+                throw new IllegalArgumentException(String.format("%s: %s is not a valid material.", entry.getLocation(), entry.getMaterial()));
+            }
+            try {
+                table.put(material, Integer.parseInt(entry.getSize()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("%s: Invalid integer: %s.", entry.getLocation(), entry.getSize()));
+            }
+        }
+        return table;
+    }
+
+    private static List<Path> list(Path directory, String extension) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + extension)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * @param files The files to scan.
+     * @param limits The maximum stack size of each material by ordinal, for each file.
+     * @param threads The number of files scanned at once.
+     */
+    private void run(List<Path> files, List<int[]> limits, int threads) throws InterruptedException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Result>> futures = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            Worker worker = new Worker(files.get(i), limits.get(i));
+            futures.add(executor.submit(worker::scan));
+        }
+        executor.shutdown();
+        Result total = new Result();
+        for (int i = 0; i < futures.size(); i++) {
+            Result result;
+            try {
+                result = futures.get(i).get();
+            } catch (ExecutionException e) {
+                result = new Result();
+                result.report(String.format("%s: Unable to scan: %s", files.get(i), e.getCause()));
+                result.errors++;
+            }
+            for (String line : result.lines) {
+                System.out.println(line);
+            }
+            total.add(result);
+        }
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Scanned %d file(s), %d chunk(s) and %d stack(s) in %.1f s (%.1f MiB/s).",
+                files.size(), total.chunks, total.stacks, seconds, total.bytes / 1048576.0 / Math.max(seconds, 1e-9)));
+        System.out.println(String.format("Oversized stacks: %d. Errors: %d.", total.oversized, total.errors));
+        if (this.fix) {
+            System.out.println(String.format("Clamped stacks: %d. Removed items: %d. Rewritten chunks and files: %d.", total.clamped, total.removed, total.rewritten));
+        }
+    }
+
+    /**
+     * The findings of a file, or of every file.
+     */
+    private static final class Result {
+
+        private final List<String> lines = new ArrayList<>();
+
+        private long bytes;
+
+        private long chunks;
+
+        private long stacks;
+
+        private long oversized;
+
+        private long clamped;
+
+        private long removed;
+
+        private long rewritten;
+
+        private long errors;
+
+        void report(String line) {
+            this.lines.add(line);
+        }
+
+        void add(Result result) {
+            this.bytes += result.bytes;
+            this.chunks += result.chunks;
+            this.stacks += result.stacks;
+            this.oversized += result.oversized;
+            this.clamped += result.clamped;
+            this.removed += result.removed;
+            this.rewritten += result.rewritten;
+            this.errors += result.errors;
+        }
+
+    }
+
+    /**
+     * Scans one file. Owns the buffers and the compressors, so that chunks are scanned without allocating.
+     */
+    private final class Worker {
+
+        private final Path file;
+
+        /**
+         * The maximum stack size of each material by ordinal.
+         */
+        private final int[] maximums;
+
+        private final Result result = new Result();
+
+        private final Inflater inflater = new Inflater();
+
+        private final Deflater deflater = new Deflater();
+
+        private byte[] compressed = new byte[SECTOR];
+
+        private byte[] data = new byte[16 * SECTOR];
+
+        private int length;
+
+        Worker(Path file, int[] maximums) {
+            this.file = file;
+            this.maximums = maximums;
+        }
+
+        Result scan() throws IOException {
+            try {
+                if (this.file.getFileName().toString().endsWith(".mca")) {
+                    this.scanRegion();
+                } else {
+                    this.scanPlayer();
+                }
+            } finally {
+                this.inflater.end();
+                this.deflater.end();
+            }
+            return this.result;
+        }
+
+        private void scanRegion() throws IOException {
+            Matcher matcher = REGION.matcher(this.file.getFileName().toString());
+            boolean named = matcher.matches();
+            int regionX = named ? Integer.parseInt(matcher.group(1)) : 0;
+            int regionZ = named ? Integer.parseInt(matcher.group(2)) : 0;
+            StandardOpenOption[] open = RegionScanner.this.fix ? new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE} : new StandardOpenOption[] {StandardOpenOption.READ};
+            try (FileChannel channel = FileChannel.open(this.file, open)) {
+                long size = channel.size();
+                this.result.bytes += size;
+                if (size < HEADER) {
+                    return;
+                }
+                MappedByteBuffer map = channel.map(RegionScanner.this.fix ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+                // Chunks that outgrow their sectors are appended at the end.
+                long end = (size + SECTOR - 1) / SECTOR * SECTOR;
+                for (int i = 0; i < CHUNKS; i++) {
+                    int location = map.getInt(i * 4);
+                    if (location == 0) {
+                        continue;
+                    }
+                    int offset = location >>> 8;
+                    int sectors = location & 0xFF;
+                    String where = String.format("%s chunk %d,%d", this.file, regionX * 32 + (i & 31), regionZ * 32 + (i >> 5));
+                    long start = (long) offset * SECTOR;
+                    if (offset < 2 || sectors == 0 || start + 5 > size) {
+                        this.error(where, "The chunk is outside of the file.");
+                        continue;
+                    }
+                    int length = map.getInt((int) start);
+                    int compression = map.get((int) start + 4);
+                    if (length < 1 || start + 4 + length > size) {
+                        this.error(where, "The chunk length is invalid.");
+                        continue;
+                    }
+                    this.compressed = ensure(this.compressed, length - 1);
+                    map.position((int) start + 5);
+                    map.get(this.compressed, 0, length - 1);
+                    try {
+                        this.decompress(compression, length - 1);
+                    } catch (IOException | DataFormatException e) {
+                        this.error(where, String.format("Unable to decompress the chunk: %s", e.getMessage()));
+                        continue;
+                    }
+                    this.result.chunks++;
+                    if (!this.scanData(where)) {
+                        continue;
+                    }
+                    // Write the clamped chunk in its sectors, or append it if it no longer fits.
+                    int compressedLength = this.deflate();
+                    int needed = (compressedLength + 5 + SECTOR - 1) / SECTOR;
+                    if (needed <= sectors) {
+                        map.putInt((int) start, compressedLength + 1);
+                        map.put((int) start + 4, (byte) COMPRESSION_ZLIB);
+                        map.position((int) start + 5);
+                        map.put(this.compressed, 0, compressedLength);
+                    } else if (needed <= 0xFF) {
+                        ByteBuffer buffer = ByteBuffer.allocate(needed * SECTOR);
+                        buffer.putInt(compressedLength + 1);
+                        buffer.put((byte) COMPRESSION_ZLIB);
+                        buffer.put(this.compressed, 0, compressedLength);
+                        buffer.clear();
+                        long position = end;
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        map.putInt(i * 4, (int) (end / SECTOR) << 8 | needed);
+                        end += (long) needed * SECTOR;
+                    } else {
+                        this.error(where, "The clamped chunk is too large to write.");
+                        continue;
+                    }
+                    this.result.rewritten++;
+                }
+                if (RegionScanner.this.fix) {
+                    map.force();
+                }
+            }
+        }
+
+        private void scanPlayer() throws IOException {
+            // Player files are small and replaced as a whole when fixed, so they are read instead of mapped.
+            byte[] contents = Files.readAllBytes(this.file);
+            this.result.bytes += contents.length;
+            this.compressed = contents;
+            try {
+                this.decompress(COMPRESSION_GZIP, contents.length);
+            } catch (IOException | DataFormatException e) {
+                this.error(this.file.toString(), String.format("Unable to decompress the file: %s", e.getMessage()));
+                return;
+            }
+            if (!this.scanData(this.file.toString())) {
+                return;
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream(contents.length);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+                gzip.write(this.data, 0, this.length);
+            }
+            Path temporaryFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+            Files.write(temporaryFile, output.toByteArray());
+            try {
+                Files.move(temporaryFile, this.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile, this.file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.result.rewritten++;
+        }
+
+        /**
+         * Report the oversized stacks in the decompressed data, and clamp them if fixing.
+         *
+         * @return True if stacks were clamped.
+         */
+        private boolean scanData(String where) {
+            boolean[] clamped = {false};
+            try {
+                NbtItemScanner.scan(this.data, this.length, (id, count, countOffset) -> {
+                    this.result.stacks++;
+                    Material material = RegionScanner.this.materials.get(id);
+                    if (material == null) {
+                        return;
+                    }
+                    int maximum = this.maximums[material.ordinal()];
+                    if (count <= maximum) {
+                        return;
+                    }
+                    this.result.oversized++;
+                    this.result.report(String.format("%s: %d %s, maximum %d", where, count, id, maximum));
+                    if (RegionScanner.this.fix && maximum > 0) {
+                        this.data[countOffset] = (byte) maximum;
+                        this.result.clamped++;
+                        this.result.removed += count - maximum;
+                        clamped[0] = true;
+                    }
+                });
+            } catch (IllegalArgumentException e) {
+                this.error(where, String.format("Invalid data: %s", e.getMessage()));
+                return false;
+            }
+            return clamped[0];
+        }
+
+        /**
+         * Decompress the compressed buffer into the data buffer.
+         */
+        private void decompress(int compression, int compressedLength) throws IOException, DataFormatException {
+            if (compression == COMPRESSION_ZLIB) {
+                this.inflater.reset();
+                this.inflater.setInput(this.compressed, 0, compressedLength);
+                this.length = 0;
+                while (!this.inflater.finished()) {
+                    if (this.length == this.data.length) {
+                        this.data = Arrays.copyOf(this.data, this.data.length * 2);
+                    }
+                    int read = this.inflater.inflate(this.data, this.length, this.data.length - this.length);
+                    if (read == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+                        throw new DataFormatException("The compressed data ends early.");
+                    }
+                    this.length += read;
+                }
+            } else if (compression == COMPRESSION_GZIP) {
+                try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(this.compressed, 0, compressedLength))) {
+                    this.length = 0;
+                    int read;
+                    do {
+                        if (this.length == this.data.length) {
+                            this.data = Arrays.copyOf(this.data, this.data.length * 2);
+                        }
+                        read = input.read(this.data, this.length, this.data.length - this.length);
+                        this.length += Math.max(read, 0);
+                    } while (read >= 0);
+                }
+            } else if (compression == COMPRESSION_NONE) {
+                this.data = ensure(this.data, compressedLength);
+                System.arraycopy(this.compressed, 0, this.data, 0, compressedLength);
+                this.length = compressedLength;
+            } else {
+                throw new DataFormatException(String.format("Unsupported compression %d.", compression));
+            }
+        }
+
+        /**
+         * Compress the data buffer with zlib into the compressed buffer.
+         *
+         * @return The compressed length.
+         */
+        private int deflate() {
+            this.deflater.reset();
+            this.deflater.setInput(this.data, 0, this.length);
+            this.deflater.finish();
+            int compressedLength = 0;
+            while (!this.deflater.finished()) {
+                if (compressedLength == this.compressed.length) {
+                    this.compressed = Arrays.copyOf(this.compressed, this.compressed.length * 2);
+                }
+                compressedLength += this.deflater.deflate(this.compressed, compressedLength, this.compressed.length - compressedLength);
+            }
+            return compressedLength;
+        }
+
+        private void error(String where, String message) {
+            this.result.report(String.format("%s: %s", where, message));
+            this.result.errors++;
+        }
+
+    }
+
+    private static byte[] ensure(byte[] buffer, int length) {
+        return buffer.length >= length ? buffer : new byte[Math.max(length, buffer.length * 2)];
+    }
+
+}
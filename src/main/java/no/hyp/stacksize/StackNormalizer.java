@@ -0,0 +1,250 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits stacks that are larger than their material's maximum stack size after the maximum was lowered. The
+ * normalizer works through the inventories and ender chests of online players, and the inventories of tile
+ * entities in loaded chunks. The part of a stack above the maximum is put into free slots of the same inventory,
+ * or dropped in stacks of at most the maximum if the inventory is full.
+ *
+ * The work is time-sliced. The normalizer is run by a repeating task once every tick, and stops once the
+ * configured budget for the tick is used up, so that normalizing never causes a lag spike. A player or a chunk
+ * is the smallest unit of work. Before a unit is normalized, the stack sizes of its world are applied, so that
+ * stacks are measured against the maximum of the world they are in. The normalizer is only accessed from the main
+ * thread.
+ */
+final class StackNormalizer implements Runnable {
+
+    private final Stacksize plugin;
+
+    /**
+     * The materials whose maximum stack size was lowered, by ordinal.
+     */
+    private final BitSet materials = new BitSet();
+
+    private final ArrayDeque<UUID> players = new ArrayDeque<>();
+
+    private final ArrayDeque<ChunkKey> chunks = new ArrayDeque<>();
+
+    /**
+     * The number of players and chunks in this run, and the number that are done.
+     */
+    private int total = 0;
+
+    private int done = 0;
+
+    private int ticks = 0;
+
+    private long workNanos = 0;
+
+    private int stacks = 0;
+
+    private int dropped = 0;
+
+    StackNormalizer(Stacksize plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Start normalizing the materials whose maximum stack size was lowered in a batch. If a run is already in
+     * progress, it is restarted with the new materials added, since the inventories it has already normalized
+     * were not checked for them.
+     *
+     * @param changes The applied changes.
+     */
+    void submit(StackSizeChanges changes) {
+        boolean lowered = false;
+        for (StackSizeChanges.Change change : changes.getChanges()) {
+            if (change.getNewSize() < change.getOldSize()) {
+                this.materials.set(change.getMaterial().ordinal());
+                lowered = true;
+            }
+        }
+        if (!lowered) {
+            return;
+        }
+        this.players.clear();
+        this.chunks.clear();
+        for (Player player : this.plugin.getServer().getOnlinePlayers()) {
+            this.players.add(player.getUniqueId());
+        }
+        for (World world : this.plugin.getServer().getWorlds()) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                this.chunks.add(new ChunkKey(world.getUID(), chunk.getX(), chunk.getZ()));
+            }
+        }
+        this.total = this.players.size() + this.chunks.size();
+        this.done = 0;
+        this.ticks = 0;
+        this.workNanos = 0;
+        this.stacks = 0;
+        this.dropped = 0;
+        if (this.plugin.isLoggingStackSizeChanges()) {
+            this.plugin.getLogger().info(String.format("Normalizing stacks of %d material(s) in %d player(s) and %d chunk(s).", this.materials.cardinality(), this.players.size(), this.chunks.size()));
+        }
+    }
+
+    /**
+     * Stop normalizing without finishing.
+     */
+    void clear() {
+        this.materials.clear();
+        this.players.clear();
+        this.chunks.clear();
+        this.total = 0;
+    }
+
+    /**
+     * @return True if a run is in progress.
+     */
+    boolean isRunning() {
+        return !this.players.isEmpty() || !this.chunks.isEmpty();
+    }
+
+    /**
+     * @return The number of players and chunks normalized in the current run, and the number in total.
+     */
+    int getDone() {
+        return this.done;
+    }
+
+    int getTotal() {
+        return this.total;
+    }
+
+    @Override
+    public void run() {
+        if (!this.isRunning()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MICROSECONDS.toNanos(this.plugin.getSettings().getNormalizerBudget());
+        do {
+            if (!this.players.isEmpty()) {
+                this.normalizePlayer(this.players.poll());
+            } else {
+                this.normalizeChunk(this.chunks.poll());
+            }
+            this.done++;
+        } while (this.isRunning() && System.nanoTime() < deadline);
+        this.ticks++;
+        this.workNanos += System.nanoTime() - start;
+        if (!this.isRunning()) {
+            this.materials.clear();
+            if (this.plugin.isLoggingStackSizeChanges()) {
+                this.plugin.getLogger().info(String.format("Normalized %d stack(s) and dropped %d item(s) in %d player(s) and chunk(s), using %.3f ms over %d tick(s).", this.stacks, this.dropped, this.total, this.workNanos / 1e6, this.ticks));
+            }
+        }
+    }
+
+    private void normalizePlayer(UUID id) {
+        Player player = this.plugin.getServer().getPlayer(id);
+        if (player == null || !player.isOnline()) {
+            return;
+        }
+        this.plugin.contextSwitch(player.getWorld());
+        this.normalize(player.getInventory(), player.getLocation());
+        this.normalize(player.getEnderChest(), player.getLocation());
+    }
+
+    private void normalizeChunk(ChunkKey key) {
+        World world = this.plugin.getServer().getWorld(key.world);
+        if (world == null || !world.isChunkLoaded(key.x, key.z)) {
+            return;
+        }
+        this.plugin.contextSwitch(world);
+        for (BlockState state : world.getChunkAt(key.x, key.z).getTileEntities()) {
+            if (state instanceof InventoryHolder) {
+                this.normalize(((InventoryHolder) state).getInventory(), state.getLocation().add(0.5, 1.0, 0.5));
+            }
+        }
+    }
+
+    /**
+     * Split the oversized stacks of an inventory. The part above the maximum is added to the inventory, which
+     * fills free slots and stacks that are not full, and what does not fit is dropped.
+     *
+     * @param inventory The inventory.
+     * @param location Where to drop items that do not fit.
+     */
+    private void normalize(Inventory inventory, Location location) {
+        ItemStack[] contents = inventory.getContents();
+        List<ItemStack> overflow = null;
+        for (int i = 0; i < contents.length; i++) {
+            ItemStack item = contents[i];
+            if (item == null || !this.materials.get(item.getType().ordinal())) {
+                continue;
+            }
+            Material material = item.getType();
+            int max = material.getMaxStackSize();
+            if (item.getAmount() <= max) {
+                continue;
+            }
+            ItemStack excess = item.clone();
+            excess.setAmount(item.getAmount() - max);
+            item.setAmount(max);
+            inventory.setItem(i, item);
+            if (overflow == null) {
+                overflow = new ArrayList<>();
+            }
+            overflow.add(excess);
+            this.stacks++;
+            this.plugin.getStatistics().stackNormalized();
+        }
+        if (overflow == null) {
+            return;
+        }
+        for (ItemStack excess : overflow) {
+            for (Map.Entry<Integer, ItemStack> remaining : inventory.addItem(excess).entrySet()) {
+                ItemStack item = remaining.getValue();
+                int amount = item.getAmount();
+                // Drop what does not fit in stacks of at most the maximum, so that no dropped item is oversized.
+                int max = Math.max(1, item.getType().getMaxStackSize());
+                for (int left = amount; left > 0; left -= max) {
+                    ItemStack stack = item.clone();
+                    stack.setAmount(Math.min(left, max));
+                    location.getWorld().dropItemNaturally(location, stack);
+                }
+                this.dropped += amount;
+                this.plugin.getStatistics().itemsDropped(amount);
+            }
+        }
+    }
+
+    /**
+     * A chunk, by world and coordinates, so that the queue does not keep chunks or worlds loaded.
+     */
+    private static final class ChunkKey {
+
+        private final UUID world;
+
+        private final int x;
+
+        private final int z;
+
+        ChunkKey(UUID world, int x, int z) {
+            this.world = world;
+            this.x = x;
+            this.z = z;
+        }
+
+    }
+
+}
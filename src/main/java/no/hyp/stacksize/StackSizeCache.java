@@ -0,0 +1,118 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A small binary file holding the stack sizes that were applied, so that they can be applied again in onLoad on
+ * the next start without parsing the configuration. The cache is keyed by the plugin version, the server package
+ * version, the fingerprint of the configuration file and the fingerprint of the stack size files it was compiled
+ * from. If any of them differ, the cache is stale and is not used. Materials are stored by name, since ordinals
+ * are not stable across server versions.
+ */
+final class StackSizeCache {
+
+    static final String FILE_NAME = "stacksizes.cache";
+
+    private static final int MAGIC = 0x53544B43;
+
+    private static final int FORMAT = 2;
+
+    private final String pluginVersion;
+
+    private final String packageVersion;
+
+    private final String fingerprint;
+
+    private final String shardsFingerprint;
+
+    StackSizeCache(String pluginVersion, String packageVersion, String fingerprint, String shardsFingerprint) {
+        this.pluginVersion = pluginVersion;
+        this.packageVersion = packageVersion;
+        this.fingerprint = fingerprint;
+        this.shardsFingerprint = shardsFingerprint;
+    }
+
+    /**
+     * Read the cached stack sizes if the cache file has this key.
+     *
+     * @param file The cache file.
+     * @return The cached stack sizes, or null if the cache is missing or stale.
+     * @throws IOException If the cache file exists but cannot be read.
+     */
+    StackSizeTable read(Path file) throws IOException {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(contents))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT) {
+                return null;
+            }
+            if (!input.readUTF().equals(this.pluginVersion) || !input.readUTF().equals(this.packageVersion) || !input.readUTF().equals(this.fingerprint) || !input.readUTF().equals(this.shardsFingerprint)) {
+                return null;
+            }
+            StackSizeTable stackSizes = new StackSizeTable();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                Material material = Material.getMaterial(input.readUTF());
+                int size = input.readInt();
+                if (material == null) {
+                    return null;
+                }
+                stackSizes.put(material, size);
+            }
+            return stackSizes;
+        } catch (EOFException e) {
+            // A truncated file is stale.
+            return null;
+        }
+    }
+
+    /**
+     * Write stack sizes to the cache file with this key. The file is written to a temporary file first, and then
+     * atomically moved over the cache file.
+     *
+     * @param file The cache file.
+     * @param stackSizes The stack sizes.
+     * @throws IOException If the file cannot be written.
+     */
+    void write(Path file, StackSizeTable stackSizes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT);
+            output.writeUTF(this.pluginVersion);
+            output.writeUTF(this.packageVersion);
+            output.writeUTF(this.fingerprint);
+            output.writeUTF(this.shardsFingerprint);
+            output.writeInt(stackSizes.size());
+            for (int i = stackSizes.next(0); i >= 0; i = stackSizes.next(i + 1)) {
+                output.writeUTF(StackSizeTable.material(i).name());
+                output.writeInt(stackSizes.get(i, 0));
+            }
+        }
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+        Files.write(temporaryFile, bytes.toByteArray());
+        try {
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
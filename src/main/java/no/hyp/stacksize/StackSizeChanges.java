@@ -0,0 +1,86 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of applying a batch of maximum stack sizes: the materials whose stack size changed, and the
+ * materials that could not be modified. Materials that already had the requested size are not included.
+ */
+final class StackSizeChanges {
+
+    private final List<Change> changes = new ArrayList<>();
+
+    private final List<Material> failures = new ArrayList<>();
+
+    void add(Material material, int oldSize, int newSize) {
+        this.changes.add(new Change(material, oldSize, newSize));
+    }
+
+    void fail(Material material) {
+        this.failures.add(material);
+    }
+
+    List<Change> getChanges() {
+        return Collections.unmodifiableList(this.changes);
+    }
+
+    List<Material> getFailures() {
+        return Collections.unmodifiableList(this.failures);
+    }
+
+    /**
+     * @return True if nothing was changed and nothing failed.
+     */
+    boolean isEmpty() {
+        return this.changes.isEmpty() && this.failures.isEmpty();
+    }
+
+    /**
+     * @return A one line description of the batch, suitable for logging.
+     */
+    String summary() {
+        if (this.isEmpty()) {
+            return "No maximum stack sizes changed.";
+        } else if (this.failures.isEmpty()) {
+            return String.format("Changed the maximum stack size of %d material(s).", this.changes.size());
+        } else {
+            return String.format("Changed the maximum stack size of %d material(s). Failed to modify %d material(s).", this.changes.size(), this.failures.size());
+        }
+    }
+
+    /**
+     * A single modified maximum stack size.
+     */
+    static final class Change {
+
+        private final Material material;
+
+        private final int oldSize;
+
+        private final int newSize;
+
+        private Change(Material material, int oldSize, int newSize) {
+            this.material = material;
+            this.oldSize = oldSize;
+            this.newSize = newSize;
+        }
+
+        Material getMaterial() {
+            return this.material;
+        }
+
+        int getOldSize() {
+            return this.oldSize;
+        }
+
+        int getNewSize() {
+            return this.newSize;
+        }
+
+    }
+
+}
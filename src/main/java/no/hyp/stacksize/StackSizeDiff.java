@@ -0,0 +1,155 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A versioned change to a table of maximum stack sizes, as published by a sync authority. Each entry is either a
+ * new stack size, or {@link #VANILLA} if the material is reset to its Vanilla size. Applying the diffs of every
+ * version in order to an empty table gives the authority's table at the last version.
+ *
+ * A snapshot is a diff that holds the whole table at its version, and replaces the table it is applied to. It
+ * stands in for every diff up to its version when a journal is compacted.
+ *
+ * A diff is encoded as a single line of text: the version, prefixed with {@link #SNAPSHOT} for a snapshot,
+ * followed by "MATERIAL=size" entries separated by spaces. Diffs are immutable.
+ */
+final class StackSizeDiff {
+
+    /**
+     * The size of an entry that resets a material to its Vanilla size.
+     */
+    static final int VANILLA = -1;
+
+    /**
+     * The prefix of the version of an encoded snapshot.
+     */
+    private static final String SNAPSHOT = "S";
+
+    private final long version;
+
+    private final boolean snapshot;
+
+    private final Map<Material, Integer> entries;
+
+    private StackSizeDiff(long version, boolean snapshot, Map<Material, Integer> entries) {
+        this.version = version;
+        this.snapshot = snapshot;
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * @param version The version of the snapshot.
+     * @param table The table at the version.
+     * @return A snapshot of the table.
+     */
+    static StackSizeDiff snapshot(long version, StackSizeTable table) {
+        Map<Material, Integer> entries = new EnumMap<>(Material.class);
+        for (int i = table.next(0); i >= 0; i = table.next(i + 1)) {
+            entries.put(StackSizeTable.material(i), table.get(i, 0));
+        }
+        return new StackSizeDiff(version, true, entries);
+    }
+
+    /**
+     * Compute the diff that turns one table into another.
+     *
+     * @param version The version of the diff.
+     * @param from The previous table.
+     * @param to The new table.
+     * @return The diff.
+     */
+    static StackSizeDiff between(long version, StackSizeTable from, StackSizeTable to) {
+        Map<Material, Integer> entries = new EnumMap<>(Material.class);
+        for (int i = to.next(0); i >= 0; i = to.next(i + 1)) {
+            int size = to.get(i, 0);
+            if (from.get(i, VANILLA) != size) {
+                entries.put(StackSizeTable.material(i), size);
+            }
+        }
+        for (int i = from.next(0); i >= 0; i = from.next(i + 1)) {
+            if (!to.contains(i)) {
+                entries.put(StackSizeTable.material(i), VANILLA);
+            }
+        }
+        return new StackSizeDiff(version, false, entries);
+    }
+
+    /**
+     * Parse an encoded diff.
+     *
+     * @param line The encoded diff.
+     * @return The diff.
+     * @throws IllegalArgumentException If the line is not a valid diff, or names an unknown material.
+     */
+    static StackSizeDiff decode(String line) {
+        String[] parts = line.trim().split(" +");
+        Map<Material, Integer> entries = new EnumMap<>(Material.class);
+        boolean snapshot = parts[0].startsWith(SNAPSHOT);
+        long version;
+        try {
+            version = Long.parseLong(snapshot ? parts[0].substring(SNAPSHOT.length()) : parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                String[] pair = parts[i].split("=", 2);
+                Material material = Material.getMaterial(pair[0]);
+                if (material == null || pair.length != 2) {
+                    throw new IllegalArgumentException(String.format("Invalid entry \"%s\" in stack size diff.", parts[i]));
+                }
+                entries.put(material, Integer.parseInt(pair[1]));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid stack size diff: %s", e.getMessage()));
+        }
+        return new StackSizeDiff(version, snapshot, entries);
+    }
+
+    /**
+     * @return The diff encoded as a single line, without a line terminator.
+     */
+    String encode() {
+        StringBuilder builder = new StringBuilder().append(this.snapshot ? SNAPSHOT : "").append(this.version);
+        for (Map.Entry<Material, Integer> entry : this.entries.entrySet()) {
+            builder.append(' ').append(entry.getKey().name()).append('=').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Apply the diff to a table.
+     *
+     * @param table The table, which is modified.
+     */
+    void applyTo(StackSizeTable table) {
+        if (this.snapshot) {
+            for (int i = table.next(0); i >= 0; i = table.next(i + 1)) {
+                table.remove(i);
+            }
+        }
+        for (Map.Entry<Material, Integer> entry : this.entries.entrySet()) {
+            if (entry.getValue() == VANILLA) {
+                table.remove(entry.getKey());
+            } else {
+                table.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return True if the diff holds the whole table at its version.
+     */
+    boolean isSnapshot() {
+        return this.snapshot;
+    }
+
+    boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+}
@@ -0,0 +1,124 @@
+package no.hyp.stacksize;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Named stack size profiles, each compiled into a table that is ready to apply. A profile's table holds the
+ * compiled stackSizes rules with the profile's rules on top. The {@link #DEFAULT} profile holds only the
+ * configured stackSizes.
+ *
+ * A schedule selects a profile by the time of day. The profiles are immutable, so they may be compiled on the
+ * configuration watcher thread and used from any thread.
+ */
+final class StackSizeProfiles {
+
+    /**
+     * The name of the profile holding only the configured stackSizes.
+     */
+    static final String DEFAULT = "default";
+
+    private final Map<String, StackSizeRules> rules;
+
+    private final List<ScheduleEntry> schedule;
+
+    /**
+     * @param base The compiled stackSizes, which becomes the default profile.
+     * @param profiles The compiled rules of the other profiles.
+     * @param schedule The schedule. Every entry must name a profile.
+     */
+    StackSizeProfiles(StackSizeRules base, Map<String, StackSizeRules> profiles, List<ScheduleEntry> schedule) {
+        Map<String, StackSizeRules> rules = new TreeMap<>(profiles);
+        rules.put(DEFAULT, base);
+        this.rules = Collections.unmodifiableMap(rules);
+        this.schedule = Collections.unmodifiableList(new ArrayList<>(schedule));
+    }
+
+    /**
+     * @param name A profile name.
+     * @return The compiled table of the profile, or null if there is no such profile. Must not be modified.
+     */
+    StackSizeTable get(String name) {
+        StackSizeRules rules = this.rules.get(name);
+        return rules != null ? rules.getTable() : null;
+    }
+
+    /**
+     * @param name A profile name.
+     * @return The compiled rules of the profile, or null if there is no such profile.
+     */
+    StackSizeRules getRules(String name) {
+        return this.rules.get(name);
+    }
+
+    /**
+     * @return The names of every profile, sorted.
+     */
+    Set<String> getNames() {
+        return this.rules.keySet();
+    }
+
+    /**
+     * @return True if any schedule entries are configured.
+     */
+    boolean isScheduled() {
+        return !this.schedule.isEmpty();
+    }
+
+    /**
+     * Find the profile that the schedule selects at a time. If several entries contain the time, the first
+     * one is used.
+     *
+     * @param time The time of day.
+     * @return The profile name, or null if no schedule entry contains the time.
+     */
+    String scheduled(LocalTime time) {
+        for (ScheduleEntry entry : this.schedule) {
+            if (entry.contains(time)) {
+                return entry.getProfile();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A profile that is active from one time of day until another. An entry whose end is before its start
+     * wraps past midnight.
+     */
+    static final class ScheduleEntry {
+
+        private final String profile;
+
+        private final LocalTime from;
+
+        private final LocalTime to;
+
+        ScheduleEntry(String profile, LocalTime from, LocalTime to) {
+            this.profile = profile;
+            this.from = from;
+            this.to = to;
+        }
+
+        String getProfile() {
+            return this.profile;
+        }
+
+        /**
+         * @return True if the time is at or after the start, and before the end.
+         */
+        boolean contains(LocalTime time) {
+            if (this.from.isAfter(this.to)) {
+                return !time.isBefore(this.from) || time.isBefore(this.to);
+            } else {
+                return !time.isBefore(this.from) && time.isBefore(this.to);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,262 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Stack sizes compiled from rule entries into a flat table, together with the rule that produced each size.
+ * Rules are expanded once when the configuration is loaded, so applying them costs nothing more than applying
+ * a plain table.
+ *
+ * A rule key is one of:
+ * <ul>
+ *     <li>A material name, such as {@code BREAD}.</li>
+ *     <li>A glob over material names, such as {@code *_BOAT}. {@code *} matches any run of characters and
+ *     {@code ?} matches one character.</li>
+ *     <li>A tag, such as {@code #minecraft:boats}. Item tags are looked up before block tags.</li>
+ *     <li>A predicate on material properties, such as {@code @edible}. See {@link #PREDICATES}.</li>
+ * </ul>
+ * Globs, tags and predicates only match items. A more specific kind of rule takes precedence over a less
+ * specific one: material names over globs, globs over tags, and tags over predicates. Among rules of the same
+ * kind, the later rule takes precedence.
+ *
+ * The compiled rules are immutable, so they may be compiled on the configuration watcher thread and used from
+ * any thread.
+ */
+final class StackSizeRules {
+
+    /**
+     * The predicates that rules can refer to.
+     */
+    static final Map<String, Predicate<Material>> PREDICATES;
+
+    static {
+        Map<String, Predicate<Material>> predicates = new LinkedHashMap<>();
+        predicates.put("edible", Material::isEdible);
+        predicates.put("potion", material -> material.name().endsWith("POTION"));
+        predicates.put("block", Material::isBlock);
+        predicates.put("fuel", Material::isFuel);
+        predicates.put("record", Material::isRecord);
+        predicates.put("flammable", Material::isFlammable);
+        predicates.put("burnable", Material::isBurnable);
+        PREDICATES = Collections.unmodifiableMap(predicates);
+    }
+
+    /**
+     * The modern materials that are items. Globs, tags and predicates only match these.
+     */
+    private static final List<Material> ITEMS;
+
+    static {
+        List<Material> items = new ArrayList<>();
+        for (Material material : Material.values()) {
+            if (!material.isLegacy() && material.isItem() && material != Material.AIR) {
+                items.add(material);
+            }
+        }
+        ITEMS = Collections.unmodifiableList(items);
+    }
+
+    private static final String NAMESPACE = "minecraft:";
+
+    /**
+     * The kinds of rules, from the lowest to the highest precedence.
+     */
+    private static final int PREDICATE = 0;
+
+    private static final int TAG = 1;
+
+    private static final int GLOB = 2;
+
+    private static final int EXACT = 3;
+
+    private final StackSizeTable table;
+
+    /**
+     * The rule that produced each size, indexed by material ordinal.
+     */
+    private final String[] sources;
+
+    private StackSizeRules(StackSizeTable table, String[] sources) {
+        this.table = table;
+        this.sources = sources;
+    }
+
+    /**
+     * @return Compiled rules without any entries.
+     */
+    static StackSizeRules empty() {
+        return new StackSizeRules(new StackSizeTable(), new String[StackSizeTable.capacity()]);
+    }
+
+    /**
+     * Compile rule entries into a table.
+     *
+     * @param base Rules to compile on top of. Every entry in the new rules takes precedence over the base.
+     * @param origin A description of where the entries are from, used when reporting rules. For example "stackSizes".
+     * @param entries Rule keys and their stack sizes, in the order they are written.
+     * @param materials Looks up a material name. Returns null if there is no such material.
+     * @param tags Looks up the materials of a tag. Returns null if there is no such tag.
+     * @param logger Invalid entries are logged and skipped.
+     * @return The compiled rules.
+     */
+    static StackSizeRules compile(StackSizeRules base, String origin, Map<String, Object> entries, Function<String, Material> materials, Function<String, Collection<Material>> tags, Logger logger) {
+        StackSizeTable table = new StackSizeTable(base.table);
+        String[] sources = base.sources.clone();
+        for (int kind = PREDICATE; kind <= EXACT; kind++) {
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                String key = entry.getKey();
+                if (kind(key) != kind) {
+                    continue;
+                }
+                Integer size = size(entry.getValue());
+                if (size == null) {
+                    logger.warning(String.format("Unable to parse integer: \"%s\". Skipping.", entry.getValue()));
+                    continue;
+                }
+                Collection<Material> matched = expand(kind, key, materials, tags);
+                if (matched == null) {
+                    logger.warning(String.format("Unable to match \"%s\" to a material. Skipping.", key));
+                    continue;
+                }
+                String source = origin + ": " + key;
+                for (Material material : matched) {
+                    table.put(material, size);
+                    sources[material.ordinal()] = source;
+                }
+            }
+        }
+        return new StackSizeRules(table, sources);
+    }
+
+    private static int kind(String key) {
+        if (key.startsWith("@")) {
+            return PREDICATE;
+        } else if (key.startsWith("#")) {
+            return TAG;
+        } else if (key.indexOf('*') >= 0 || key.indexOf('?') >= 0) {
+            return GLOB;
+        } else {
+            return EXACT;
+        }
+    }
+
+    private static Integer size(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The materials a rule matches, or null if the rule refers to something that does not exist.
+     */
+    private static Collection<Material> expand(int kind, String key, Function<String, Material> materials, Function<String, Collection<Material>> tags) {
+        switch (kind) {
+            case PREDICATE: {
+                Predicate<Material> predicate = PREDICATES.get(key.substring(1).toLowerCase(Locale.ROOT));
+                if (predicate == null) {
+                    return null;
+                }
+                return filter(predicate);
+            }
+            case TAG: {
+                Collection<Material> tagged = tags.apply(key.substring(1));
+                if (tagged == null) {
+                    return null;
+                }
+                return filter(tagged::contains);
+            }
+            case GLOB: {
+                return glob(key);
+            }
+            default: {
+                Material material = materials.apply(key);
+                return material != null ? Collections.singletonList(material) : null;
+            }
+        }
+    }
+
+    private static List<Material> filter(Predicate<Material> predicate) {
+        List<Material> matched = new ArrayList<>();
+        for (Material material : ITEMS) {
+            if (predicate.test(material)) {
+                matched.add(material);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * @param key A rule key.
+     * @return True if the key is a glob.
+     */
+    static boolean isGlob(String key) {
+        return kind(key) == GLOB;
+    }
+
+    /**
+     * Find the items whose names match a glob, ignoring case.
+     *
+     * @param glob The glob, such as {@code *_BOAT}.
+     * @return The matching items, in ordinal order.
+     */
+    static List<Material> glob(String glob) {
+        Pattern pattern = pattern(glob);
+        return filter(material -> pattern.matcher(material.name()).matches());
+    }
+
+    /**
+     * Translate a glob to a pattern over upper case material names.
+     */
+    private static Pattern pattern(String glob) {
+        String name = glob.toUpperCase(Locale.ROOT);
+        if (name.startsWith(NAMESPACE.toUpperCase(Locale.ROOT))) {
+            name = name.substring(NAMESPACE.length());
+        }
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            if (c == '*' || c == '?') {
+                regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        regex.append(Pattern.quote(literal.toString()));
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * The table must not be modified.
+     */
+    StackSizeTable getTable() {
+        return this.table;
+    }
+
+    /**
+     * @param material A material.
+     * @return The rule that produced the material's stack size, or null if no rule matched it.
+     */
+    String getSource(Material material) {
+        return this.sources[material.ordinal()];
+    }
+
+}
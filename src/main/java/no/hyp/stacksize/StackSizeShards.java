@@ -0,0 +1,216 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * The parsed stack size files in the {@link #DIRECTORY} directory of the plugin. Each file holds rule entries like
+ * the stackSizes section of the configuration, either at the top level or under a stackSizes key. The files are
+ * compiled on top of the configured stackSizes in the order of their names, so a file takes precedence over the
+ * files before it. The profiles are compiled on top of the result.
+ *
+ * The parsed entries of every file are kept together with a fingerprint of the file contents, so that an update
+ * only parses the files that changed. Instances are immutable, so they may be updated on the configuration watcher
+ * thread and used from any thread.
+ *
+ * The names and fingerprints of the files are combined into a fingerprint of the directory, which can also be
+ * computed without parsing, so that the stack size cache can tell whether the files changed.
+ */
+final class StackSizeShards {
+
+    /**
+     * The name of the directory holding the files, in the plugin's directory.
+     */
+    static final String DIRECTORY = "stacksizes.d";
+
+    private static final StackSizeShards EMPTY = new StackSizeShards(new TreeMap<>());
+
+    /**
+     * The files by name, in the order they are compiled.
+     */
+    private final Map<String, Shard> shards;
+
+    private final String fingerprint;
+
+    private StackSizeShards(TreeMap<String, Shard> shards) {
+        this.shards = Collections.unmodifiableMap(shards);
+        TreeMap<String, String> fingerprints = new TreeMap<>();
+        for (Map.Entry<String, Shard> entry : shards.entrySet()) {
+            fingerprints.put(entry.getKey(), entry.getValue().fingerprint);
+        }
+        this.fingerprint = fingerprint(fingerprints);
+    }
+
+    /**
+     * @return No files.
+     */
+    static StackSizeShards empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param fileName A file name.
+     * @return True if the file name has an extension of a stack size file.
+     */
+    static boolean isShard(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.endsWith(".yml") || name.endsWith(".yaml");
+    }
+
+    /**
+     * @return The fingerprint of the parsed files, as {@link #fingerprint(Path)} computes it for a directory holding
+     * exactly these files.
+     */
+    String getFingerprint() {
+        return this.fingerprint;
+    }
+
+    /**
+     * Compute the fingerprint of the files of a directory without parsing them.
+     *
+     * @param directory The directory. If it does not exist, there are no files.
+     * @return The fingerprint.
+     * @throws IOException If the directory or a file cannot be read.
+     */
+    static String fingerprint(Path directory) throws IOException {
+        TreeMap<String, String> fingerprints = new TreeMap<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (isShard(name) && Files.isRegularFile(file)) {
+                        fingerprints.put(name, ConfigurationWriter.fingerprint(Files.readAllBytes(file)));
+                    }
+                }
+            }
+        }
+        return fingerprint(fingerprints);
+    }
+
+    /**
+     * @param fingerprints The fingerprints of the files by name.
+     */
+    private static String fingerprint(TreeMap<String, String> fingerprints) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+            builder.append(entry.getKey()).append('\n').append(entry.getValue()).append('\n');
+        }
+        return ConfigurationWriter.fingerprint(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read the files of a directory again. Only files whose contents changed are parsed. If a file cannot be read
+     * or is not valid YAML, the previously parsed entries of the file are kept.
+     *
+     * @param directory The directory. If it does not exist, there are no files.
+     * @param logger Unreadable files are logged.
+     * @return The updated files, or this if nothing changed.
+     */
+    StackSizeShards update(Path directory, Logger logger) {
+        TreeMap<String, Shard> shards = new TreeMap<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (!isShard(name) || !Files.isRegularFile(file)) {
+                        continue;
+                    }
+                    Shard previous = this.shards.get(name);
+                    Shard shard = read(file, previous, logger);
+                    if (shard != null) {
+                        shards.put(name, shard);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warning(String.format("Unable to list %s: %s", directory, e));
+                return this;
+            }
+        }
+        if (shards.keySet().equals(this.shards.keySet())) {
+            boolean changed = false;
+            for (Map.Entry<String, Shard> entry : shards.entrySet()) {
+                changed |= this.shards.get(entry.getKey()) != entry.getValue();
+            }
+            if (!changed) {
+                return this;
+            }
+        }
+        return new StackSizeShards(shards);
+    }
+
+    /**
+     * @return The file parsed, the previous shard if its contents are unchanged, or null if it cannot be parsed
+     * and was not parsed before.
+     */
+    private static Shard read(Path file, Shard previous, Logger logger) {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(file);
+        } catch (IOException e) {
+            logger.warning(String.format("Unable to read %s: %s", file, e));
+            return previous;
+        }
+        String fingerprint = ConfigurationWriter.fingerprint(contents);
+        if (previous != null && previous.fingerprint.equals(fingerprint)) {
+            return previous;
+        }
+        YamlConfiguration configuration = new YamlConfiguration();
+        try {
+            configuration.loadFromString(new String(contents, StandardCharsets.UTF_8));
+        } catch (InvalidConfigurationException e) {
+            logger.warning(String.format("%s is invalid and was not reloaded: %s", file, e.getMessage()));
+            return previous;
+        }
+        ConfigurationSection section = configuration.isConfigurationSection("stackSizes") ? configuration.getConfigurationSection("stackSizes") : configuration;
+        return new Shard(fingerprint, section.getValues(false));
+    }
+
+    /**
+     * Compile the files on top of other rules, in order. Does not parse anything.
+     *
+     * @param base The rules to compile on top of.
+     * @param materials Looks up a material name.
+     * @param tags Looks up the materials of a tag.
+     * @param logger Invalid entries are logged and skipped.
+     * @return The compiled rules.
+     */
+    StackSizeRules compile(StackSizeRules base, Function<String, Material> materials, Function<String, Collection<Material>> tags, Logger logger) {
+        StackSizeRules rules = base;
+        for (Map.Entry<String, Shard> entry : this.shards.entrySet()) {
+            rules = StackSizeRules.compile(rules, DIRECTORY + "/" + entry.getKey(), entry.getValue().entries, materials, tags, logger);
+        }
+        return rules;
+    }
+
+    /**
+     * The parsed entries of a file.
+     */
+    private static final class Shard {
+
+        private final String fingerprint;
+
+        private final Map<String, Object> entries;
+
+        Shard(String fingerprint, Map<String, Object> entries) {
+            this.fingerprint = fingerprint;
+            this.entries = Collections.unmodifiableMap(entries);
+        }
+
+    }
+
+}
@@ -0,0 +1,44 @@
+package no.hyp.stacksize;
+
+/**
+ * An immutable copy of the plugin's Vanilla and applied stack size tables. The main thread publishes a new
+ * snapshot after modifying stack sizes, so that other threads can compute changes without touching live state.
+ */
+final class StackSizeSnapshot {
+
+    private final StackSizeTable vanilla;
+
+    private final StackSizeTable applied;
+
+    private final long version;
+
+    /**
+     * @param vanilla The Vanilla stack sizes. Copied.
+     * @param applied The applied stack sizes. Copied.
+     * @param version The number of stack size modifications made before the snapshot was taken.
+     */
+    StackSizeSnapshot(StackSizeTable vanilla, StackSizeTable applied, long version) {
+        this.vanilla = new StackSizeTable(vanilla);
+        this.applied = new StackSizeTable(applied);
+        this.version = version;
+    }
+
+    /**
+     * The tables must not be modified.
+     */
+    StackSizeTable getVanilla() {
+        return this.vanilla;
+    }
+
+    /**
+     * The tables must not be modified.
+     */
+    StackSizeTable getApplied() {
+        return this.applied;
+    }
+
+    long getVersion() {
+        return this.version;
+    }
+
+}
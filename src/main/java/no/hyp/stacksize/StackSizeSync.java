@@ -0,0 +1,334 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Keeps the stack sizes of several servers in sync. One server is the authority: whenever its applied stack sizes
+ * change, it publishes a versioned diff through a {@link SyncTransport}. The other servers are followers: they poll
+ * the transport for the diffs after the version they have, apply them in order, and acknowledge the new version.
+ * A follower applies the authority's stack sizes instead of its own configured stack sizes and profiles.
+ *
+ * A follower stores the authority's table and version in a state file, so that after a restart or an outage it
+ * fetches only the diffs it missed. The authority rebuilds its last published table from its journal on start.
+ * After publishing, the authority has the transport compact the diffs every follower has acknowledged into a
+ * snapshot, and a follower that has fallen too far behind receives the snapshot instead of the diffs it missed.
+ *
+ * Transport I/O happens on the sync thread. Applying stack sizes happens on the main thread.
+ */
+final class StackSizeSync {
+
+    static final String MODE_OFF = "off";
+
+    static final String MODE_AUTHORITY = "authority";
+
+    static final String MODE_FOLLOWER = "follower";
+
+    /**
+     * The default time between polls by a follower in milliseconds.
+     */
+    static final long DEFAULT_INTERVAL = 1000;
+
+    private static final String STATE_FILE = "sync.state";
+
+    private final Stacksize plugin;
+
+    private final SyncTransport transport;
+
+    private final boolean authority;
+
+    private final String node;
+
+    private final long interval;
+
+    private final Path stateFile;
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The latest table and version. On the authority, the last published ones. On a follower, the last fetched
+     * ones. Only accessed by the sync thread.
+     */
+    private StackSizeTable latest = new StackSizeTable();
+
+    private long latestVersion = 0;
+
+    /**
+     * The authority's table and version that a follower has applied. Only written by the main thread.
+     */
+    private volatile StackSizeTable table = new StackSizeTable();
+
+    private volatile long version = 0;
+
+    /**
+     * The acknowledged versions of the followers, as last read by the authority.
+     */
+    private volatile Map<String, Long> acknowledgements = Collections.emptyMap();
+
+    private StackSizeSync(Stacksize plugin, SyncTransport transport, boolean authority, String node, long interval, Path stateFile) {
+        this.plugin = plugin;
+        this.transport = transport;
+        this.authority = authority;
+        this.node = node;
+        this.interval = interval;
+        this.stateFile = stateFile;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Stacksize sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Set up syncing from the sync section of the configuration. Nothing is started.
+     *
+     * @param plugin The plugin.
+     * @param configuration The sync section.
+     * @param path The plugin's directory.
+     * @return The sync, or null if the mode is off.
+     * @throws IOException If the transport could not be set up.
+     * @throws IllegalArgumentException If the section is invalid.
+     */
+    static StackSizeSync create(Stacksize plugin, ConfigurationSection configuration, Path path) throws IOException {
+        String mode = configuration.getString("mode", MODE_OFF).toLowerCase(Locale.ROOT);
+        if (mode.equals(MODE_OFF)) {
+            return null;
+        }
+        if (!mode.equals(MODE_AUTHORITY) && !mode.equals(MODE_FOLLOWER)) {
+            throw new IllegalArgumentException(String.format("Unknown sync mode \"%s\".", mode));
+        }
+        boolean authority = mode.equals(MODE_AUTHORITY);
+        String node = configuration.getString("node", "");
+        if (!authority && !node.matches("[A-Za-z0-9_.-]+")) {
+            throw new IllegalArgumentException(String.format("A follower needs a node name of letters, digits, '_', '.' and '-', but it is \"%s\".", node));
+        }
+        String transportName = configuration.getString("transport", "journal").toLowerCase(Locale.ROOT);
+        SyncTransport transport;
+        if (transportName.equals("journal")) {
+            transport = new JournalSyncTransport(path.resolve(configuration.getString("journal", "sync")).normalize(), plugin.getLogger());
+        } else if (transportName.equals("tcp")) {
+            String address = configuration.getString("address", "127.0.0.1:25580");
+            if (authority) {
+                transport = TcpSyncTransport.authority(TcpSyncTransport.address(address), path.resolve("sync").resolve("journal.log"), plugin.getLogger());
+            } else {
+                transport = TcpSyncTransport.follower(TcpSyncTransport.address(address), plugin.getLogger());
+            }
+        } else {
+            throw new IllegalArgumentException(String.format("Unknown sync transport \"%s\".", transportName));
+        }
+        long interval = Math.max(50, configuration.getLong("interval", DEFAULT_INTERVAL));
+        return new StackSizeSync(plugin, transport, authority, node, interval, path.resolve(STATE_FILE));
+    }
+
+    /**
+     * Start syncing. A follower reads its state file first, so that its table is in place when the configuration
+     * is applied. Must be called on the main thread.
+     */
+    void start() {
+        if (this.authority) {
+            this.executor.execute(this::replay);
+            this.executor.scheduleWithFixedDelay(this::readAcknowledgements, this.interval, this.interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.readState();
+            this.executor.scheduleWithFixedDelay(this::poll, 0, this.interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop syncing. Pending publications and acknowledgements are finished.
+     */
+    void close() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                this.plugin.getLogger().warning("Timed out while finishing sync.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.transport.close();
+    }
+
+    boolean isAuthority() {
+        return this.authority;
+    }
+
+    /**
+     * @return The authority's stack sizes that a follower has applied. Must not be modified.
+     */
+    StackSizeTable getTable() {
+        return this.table;
+    }
+
+    /**
+     * @return The version a follower has applied.
+     */
+    long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return The versions acknowledged by the followers, as last read by the authority.
+     */
+    Map<String, Long> getAcknowledgements() {
+        return this.acknowledgements;
+    }
+
+    /**
+     * Publish the applied stack sizes of the authority, if they differ from the last published ones.
+     *
+     * @param applied The applied stack sizes. Must not be modified afterwards.
+     */
+    void publish(StackSizeTable applied) {
+        this.executor.execute(() -> {
+            StackSizeDiff diff = StackSizeDiff.between(this.latestVersion + 1, this.latest, applied);
+            if (diff.isEmpty()) {
+                return;
+            }
+            try {
+                this.transport.publish(diff);
+                this.latest = applied;
+                this.latestVersion = diff.getVersion();
+                this.version = diff.getVersion();
+            } catch (IOException e) {
+                this.plugin.getLogger().log(Level.WARNING, String.format("Unable to publish stack size version %d.", diff.getVersion()), e);
+                return;
+            }
+            long acknowledged = this.latestVersion;
+            for (long version : this.acknowledgements.values()) {
+                acknowledged = Math.min(acknowledged, version);
+            }
+            try {
+                this.transport.compact(acknowledged);
+            } catch (IOException e) {
+                this.plugin.getLogger().log(Level.WARNING, "Unable to compact the sync journal.", e);
+            }
+        });
+    }
+
+    /**
+     * Rebuild the last published table of the authority from its journal. Runs on the sync thread.
+     */
+    private void replay() {
+        try {
+            StackSizeTable table = new StackSizeTable();
+            long version = 0;
+            for (StackSizeDiff diff : this.transport.fetch(0)) {
+                diff.applyTo(table);
+                version = diff.getVersion();
+            }
+            this.latest = table;
+            this.latestVersion = version;
+            this.version = version;
+        } catch (IOException e) {
+            this.plugin.getLogger().log(Level.SEVERE, "Unable to read the sync journal. Publishing from version 0.", e);
+        }
+    }
+
+    private void readAcknowledgements() {
+        try {
+            this.acknowledgements = Collections.unmodifiableMap(this.transport.acknowledgements());
+        } catch (IOException e) {
+            this.plugin.getLogger().log(Level.WARNING, "Unable to read sync acknowledgements.", e);
+        }
+    }
+
+    /**
+     * Fetch the diffs after the latest version, and hand the new table to the main thread. Runs on the sync thread.
+     */
+    private void poll() {
+        List<StackSizeDiff> diffs;
+        try {
+            diffs = this.transport.fetch(this.latestVersion);
+        } catch (IOException e) {
+            this.plugin.getLogger().warning(String.format("Unable to fetch stack sizes from the sync authority: %s", e.getMessage()));
+            return;
+        }
+        StackSizeTable table = new StackSizeTable(this.latest);
+        long version = this.latestVersion;
+        for (StackSizeDiff diff : diffs) {
+            // A snapshot replaces the diffs up to its version, which a follower that fell behind no longer gets.
+            if (diff.isSnapshot()) {
+                diff.applyTo(table);
+                version = diff.getVersion();
+                continue;
+            }
+            if (diff.getVersion() != version + 1) {
+                this.plugin.getLogger().warning(String.format("Stack size version %d is missing. Waiting for it.", version + 1));
+                break;
+            }
+            diff.applyTo(table);
+            version = diff.getVersion();
+        }
+        if (version == this.latestVersion) {
+            return;
+        }
+        this.latest = table;
+        this.latestVersion = version;
+        long applied = version;
+        Bukkit.getScheduler().runTask(this.plugin, () -> {
+            this.table = table;
+            this.version = applied;
+            StackSizeChanges changes = this.plugin.applySynced();
+            if (this.plugin.isLoggingConfigurationModification()) {
+                this.plugin.getLogger().info(String.format("Applied stack size version %d from the sync authority. %s", applied, changes.summary()));
+            }
+            this.executor.execute(() -> this.acknowledge(table, applied));
+        });
+    }
+
+    /**
+     * Store the applied table and version, and acknowledge the version. Runs on the sync thread.
+     */
+    private void acknowledge(StackSizeTable table, long version) {
+        try {
+            Path temporaryFile = this.stateFile.resolveSibling(this.stateFile.getFileName() + ".tmp");
+            Files.write(temporaryFile, StackSizeDiff.between(version, new StackSizeTable(), table).encode().getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(temporaryFile, this.stateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile, this.stateFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            this.transport.acknowledge(this.node, version);
+        } catch (IOException e) {
+            this.plugin.getLogger().warning(String.format("Unable to acknowledge stack size version %d: %s", version, e.getMessage()));
+        }
+    }
+
+    /**
+     * Read the table and version a follower applied before it was stopped.
+     */
+    private void readState() {
+        try {
+            String state = new String(Files.readAllBytes(this.stateFile), StandardCharsets.UTF_8);
+            StackSizeDiff diff = StackSizeDiff.decode(state);
+            StackSizeTable table = new StackSizeTable();
+            diff.applyTo(table);
+            this.latest = table;
+            this.latestVersion = diff.getVersion();
+            this.table = new StackSizeTable(table);
+            this.version = diff.getVersion();
+        } catch (NoSuchFileException e) {
+            // Fetch every version.
+        } catch (IOException | IllegalArgumentException e) {
+            this.plugin.getLogger().warning(String.format("Unable to read %s. Fetching every version: %s", this.stateFile, e.getMessage()));
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.util.BitSet;
+
+/**
+ * A table of maximum stack sizes indexed by material ordinal. A bitset marks which materials have an entry, so
+ * that lookups and iteration over the entries do not allocate.
+ *
+ * Iterate over the entries with:
+ * <pre>
+ * for (int i = table.next(0); i >= 0; i = table.next(i + 1)) { ... }
+ * </pre>
+ */
+final class StackSizeTable {
+
+    private static final Material[] MATERIALS = Material.values();
+
+    private final int[] sizes;
+
+    private final BitSet materials;
+
+    StackSizeTable() {
+        this.sizes = new int[MATERIALS.length];
+        this.materials = new BitSet(MATERIALS.length);
+    }
+
+    /**
+     * Copy another table.
+     */
+    StackSizeTable(StackSizeTable table) {
+        this.sizes = table.sizes.clone();
+        this.materials = (BitSet) table.materials.clone();
+    }
+
+    /**
+     * @param ordinal A material ordinal.
+     * @return The material with the ordinal.
+     */
+    static Material material(int ordinal) {
+        return MATERIALS[ordinal];
+    }
+
+    /**
+     * @return The number of materials that a table can hold.
+     */
+    static int capacity() {
+        return MATERIALS.length;
+    }
+
+    boolean contains(int ordinal) {
+        return this.materials.get(ordinal);
+    }
+
+    boolean contains(Material material) {
+        return this.contains(material.ordinal());
+    }
+
+    /**
+     * @param ordinal A material ordinal.
+     * @param fallback Returned if the material has no entry.
+     * @return The stack size of the material.
+     */
+    int get(int ordinal, int fallback) {
+        return this.materials.get(ordinal) ? this.sizes[ordinal] : fallback;
+    }
+
+    int get(Material material, int fallback) {
+        return this.get(material.ordinal(), fallback);
+    }
+
+    void put(int ordinal, int size) {
+        this.sizes[ordinal] = size;
+        this.materials.set(ordinal);
+    }
+
+    void put(Material material, int size) {
+        this.put(material.ordinal(), size);
+    }
+
+    void remove(int ordinal) {
+        this.materials.clear(ordinal);
+    }
+
+    void remove(Material material) {
+        this.remove(material.ordinal());
+    }
+
+    /**
+     * @param fromOrdinal The ordinal to start searching from, inclusive.
+     * @return The ordinal of the next material with an entry, or -1 if there are none.
+     */
+    int next(int fromOrdinal) {
+        return this.materials.nextSetBit(fromOrdinal);
+    }
+
+    /**
+     * @return The number of materials with an entry.
+     */
+    int size() {
+        return this.materials.cardinality();
+    }
+
+    boolean isEmpty() {
+        return this.materials.isEmpty();
+    }
+
+}
@@ -0,0 +1,135 @@
+package no.hyp.stacksize;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads and writes tables of material stack sizes for the import and export commands. A table is either a YAML
+ * file mapping material names to stack sizes, optionally under a stackSizes key like the configuration, or a
+ * CSV file with one "material,size" line per material. Reading only parses the file. The entries are validated
+ * by the caller.
+ */
+final class StackSizeTableFile {
+
+    private StackSizeTableFile() {}
+
+    /**
+     * @param fileName A file name.
+     * @return True if the file name has an extension this class can read and write.
+     */
+    static boolean isSupported(String fileName) {
+        return isCsv(fileName) || isYaml(fileName);
+    }
+
+    private static boolean isCsv(String fileName) {
+        return fileName.toLowerCase(Locale.ROOT).endsWith(".csv");
+    }
+
+    private static boolean isYaml(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.endsWith(".yml") || name.endsWith(".yaml");
+    }
+
+    /**
+     * Parse a table.
+     *
+     * @param fileName The file name, which decides the format.
+     * @param contents The file contents.
+     * @return The entries, in file order.
+     * @throws InvalidConfigurationException If a YAML file is not valid YAML.
+     */
+    static List<Entry> read(String fileName, byte[] contents) throws InvalidConfigurationException {
+        String text = new String(contents, StandardCharsets.UTF_8);
+        List<Entry> entries = new ArrayList<>();
+        if (isCsv(fileName)) {
+            String[] lines = text.split("\r?\n", -1);
+            for (int i = 0; i < lines.length; i++) {
+                String line = lines[i].trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int separator = line.indexOf(',');
+                String name = separator < 0 ? line : line.substring(0, separator).trim();
+                String size = separator < 0 ? "" : line.substring(separator + 1).trim();
+                // Skip a header line.
+                if (entries.isEmpty() && name.equalsIgnoreCase("material")) {
+                    continue;
+                }
+                entries.add(new Entry(name, size, "line " + (i + 1)));
+            }
+        } else {
+            YamlConfiguration configuration = new YamlConfiguration();
+            configuration.loadFromString(text);
+            ConfigurationSection section = configuration.isConfigurationSection("stackSizes") ? configuration.getConfigurationSection("stackSizes") : configuration;
+            for (Map.Entry<String, Object> entry : section.getValues(false).entrySet()) {
+                entries.add(new Entry(entry.getKey(), String.valueOf(entry.getValue()), entry.getKey()));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Format a table.
+     *
+     * @param fileName The file name, which decides the format.
+     * @param stackSizes The stack sizes.
+     * @return The file contents.
+     */
+    static byte[] write(String fileName, StackSizeTable stackSizes) {
+        StringBuilder builder = new StringBuilder();
+        if (isCsv(fileName)) {
+            builder.append("material,size\n");
+            for (int i = stackSizes.next(0); i >= 0; i = stackSizes.next(i + 1)) {
+                builder.append(StackSizeTable.material(i).name()).append(',').append(stackSizes.get(i, 0)).append('\n');
+            }
+        } else {
+            builder.append("stackSizes:\n");
+            for (int i = stackSizes.next(0); i >= 0; i = stackSizes.next(i + 1)) {
+                builder.append("  ").append(StackSizeTable.material(i).name()).append(": ").append(stackSizes.get(i, 0)).append('\n');
+            }
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An unvalidated entry of a table.
+     */
+    static final class Entry {
+
+        private final String material;
+
+        private final String size;
+
+        private final String location;
+
+        Entry(String material, String size, String location) {
+            this.material = material;
+            this.size = size;
+            this.location = location;
+        }
+
+        String getMaterial() {
+            return this.material;
+        }
+
+        String getSize() {
+            return this.size;
+        }
+
+        /**
+         * @return Where in the file the entry is, for error messages.
+         */
+        String getLocation() {
+            return this.location;
+        }
+
+    }
+
+}
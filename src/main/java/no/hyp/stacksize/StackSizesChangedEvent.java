@@ -0,0 +1,78 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Called on the main thread once for every batch of maximum stack size changes, such as a reload, a profile
+ * switch, a command, or the reset when the plugin is disabled. The event carries the whole batch, so that
+ * consumers can invalidate their caches once. Only materials whose maximum stack size actually changed are
+ * included. When the event is called, the new sizes are already in effect, and {@link StacksizeService} already
+ * serves them.
+ */
+public final class StackSizesChangedEvent extends Event {
+
+    private static final HandlerList HANDLERS = new HandlerList();
+
+    private final Map<Material, Integer> oldStackSizes;
+
+    private final Map<Material, Integer> newStackSizes;
+
+    private final long version;
+
+    StackSizesChangedEvent(StackSizeChanges changes, long version) {
+        Map<Material, Integer> oldStackSizes = new EnumMap<>(Material.class);
+        Map<Material, Integer> newStackSizes = new EnumMap<>(Material.class);
+        for (StackSizeChanges.Change change : changes.getChanges()) {
+            oldStackSizes.put(change.getMaterial(), change.getOldSize());
+            newStackSizes.put(change.getMaterial(), change.getNewSize());
+        }
+        this.oldStackSizes = Collections.unmodifiableMap(oldStackSizes);
+        this.newStackSizes = Collections.unmodifiableMap(newStackSizes);
+        this.version = version;
+    }
+
+    /**
+     * @return The materials whose maximum stack size changed.
+     */
+    public Set<Material> getMaterials() {
+        return this.newStackSizes.keySet();
+    }
+
+    /**
+     * @return The maximum stack sizes of the changed materials before the change.
+     */
+    public Map<Material, Integer> getOldStackSizes() {
+        return this.oldStackSizes;
+    }
+
+    /**
+     * @return The maximum stack sizes of the changed materials after the change.
+     */
+    public Map<Material, Integer> getNewStackSizes() {
+        return this.newStackSizes;
+    }
+
+    /**
+     * @return The {@link StacksizeService#getVersion()} after the change.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    @Override
+    public HandlerList getHandlers() {
+        return HANDLERS;
+    }
+
+    public static HandlerList getHandlerList() {
+        return HANDLERS;
+    }
+
+}
@@ -1,24 +1,54 @@
 package no.hyp.stacksize;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.stream.Collectors;
 
-import org.bukkit.Bukkit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
 import org.bukkit.ChatColor;
 import org.bukkit.GameMode;
+import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Tag;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityPickupItemEvent;
 import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
+import org.bukkit.event.inventory.InventoryMoveItemEvent;
+import org.bukkit.event.inventory.InventoryType;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.inventory.InventoryView;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
 
 public class Stacksize extends JavaPlugin implements Listener {
 
@@ -26,9 +56,7 @@ public class Stacksize extends JavaPlugin implements Listener {
 
     private final String PERMISSION_MODIFY = "stacksize.modify";
 
-    private final String LOG_STACKSIZE_MODIFICATION = "STACK_SIZE_MODIFIED";
-
-    private final String LOG_CONFIGURATION_MODIFICATION = "CONFIGURATION_MODIFIED";
+    private final String PERMISSION_STATS = "stacksize.stats";
 
     private final String SUBCOMMAND_VIEW = "view";
 
@@ -38,6 +66,30 @@ public class Stacksize extends JavaPlugin implements Listener {
 
     private final String SUBCOMMAND_RESET = "reset";
 
+    private final String SUBCOMMAND_STATS = "stats";
+
+    private final String SUBCOMMAND_PROFILE = "profile";
+
+    private final String SUBCOMMAND_IMPORT = "import";
+
+    private final String SUBCOMMAND_EXPORT = "export";
+
+    private final String SUBCOMMAND_HISTORY = "history";
+
+    private final String SUBCOMMAND_ROLLBACK = "rollback";
+
+    /**
+     * The maximum number of invalid entries listed when a batch is rejected.
+     */
+    private final int LISTED_ERRORS = 5;
+
+    /**
+     * The maximum number of materials listed for each entry of the history.
+     */
+    private final int LISTED_HISTORY_MATERIALS = 5;
+
+    private final DateTimeFormatter HISTORY_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     /**
      * The path of the configuration directory.
      */
@@ -49,30 +101,367 @@ public class Stacksize extends JavaPlugin implements Listener {
     private Thread watcherThread;
 
     /**
-     * A list of currently modified materials and their original stack sizes.
+     * The runnable of the watcher thread.
+     */
+    private ConfigurationWatcher watcher;
+
+    /**
+     * The loaded configuration.
+     */
+    private FileConfiguration configuration;
+
+    /**
+     * The fingerprint of the configuration file contents when it was last loaded.
+     */
+    private String configurationFingerprint;
+
+    /**
+     * The parsed files of the stack size directory.
+     */
+    private volatile StackSizeShards shards = StackSizeShards.empty();
+
+    /**
+     * The original stack sizes of every material that has been modified.
+     */
+    private final StackSizeTable vanillaStackSizes = new StackSizeTable();
+
+    /**
+     * The currently applied base stack sizes of materials that differ from their Vanilla size. The stack sizes of
+     * a world context are applied on top without being recorded here.
+     */
+    private final StackSizeTable appliedStackSizes = new StackSizeTable();
+
+    /**
+     * The number of stack size modifications made. Only accessed by the main thread.
+     */
+    private long stackSizeVersion = 0;
+
+    /**
+     * A copy of the Vanilla and applied stack sizes for other threads.
+     */
+    private volatile StackSizeSnapshot stackSizeSnapshot = new StackSizeSnapshot(new StackSizeTable(), new StackSizeTable(), 0);
+
+    /**
+     * Cached access to the server internals holding the maximum stack sizes.
+     */
+    private VersionAdapter adapter;
+
+    /**
+     * Players whose inventories are resent to the client the next tick.
+     */
+    private InventoryResyncQueue resyncQueue;
+
+    /**
+     * Splits oversized stacks after maximum stack sizes are lowered.
+     */
+    private StackNormalizer normalizer;
+
+    /**
+     * Stack size lookups for other plugins.
+     */
+    private StacksizeSnapshotService service;
+
+    /**
+     * Material names for commands, tab completion and configuration parsing.
+     */
+    private MaterialIndex materialIndex;
+
+    /**
+     * Namespaced tag names to the materials they contain, read on the main thread so that rules compiled by the
+     * configuration watcher do not call into the server. Item tags take precedence over block tags.
+     */
+    private volatile Map<String, Set<Material>> tags = Collections.emptyMap();
+
+    /**
+     * Writes the configuration file off the main thread.
+     */
+    private ConfigurationWriter configurationWriter;
+
+    /**
+     * Logs each batch of applied stack sizes off the main thread, or null before the plugin is enabled.
+     */
+    private ChangeLog changeLog;
+
+    /**
+     * The settings compiled from the loaded configuration, including the profiles and the applied profile.
+     * Replaced as a whole, never modified.
+     */
+    private volatile StacksizeSettings settings = StacksizeSettings.empty();
+
+    /**
+     * The profile the schedule selected when it was last checked, or null if no schedule entry was active.
+     */
+    private String scheduledProfile = null;
+
+    /**
+     * False if the schedule must be checked again regardless of whether the scheduled profile changed,
+     * because the configuration was reloaded.
+     */
+    private boolean scheduleChecked = false;
+
+    /**
+     * Runtime statistics, also registered as an MBean while the plugin is enabled.
+     */
+    private final StacksizeStatistics statistics = new StacksizeStatistics();
+
+    /**
+     * The configuration and stack size file fingerprints and the stack size version that the stack size cache was
+     * last written for. Only accessed by the main thread.
+     */
+    private String cachedFingerprint = null;
+
+    private String cachedShardsFingerprint = null;
+
+    private long cachedStackSizeVersion = -1;
+
+    /**
+     * Syncs stack sizes with other servers, or null if syncing is off.
+     */
+    private StackSizeSync sync = null;
+
+    /**
+     * The stack size version the sync authority last published. Only accessed by the main thread.
+     */
+    private long syncedStackSizeVersion = -1;
+
+    /**
+     * The most recent batches of applied stack sizes, or null before the plugin is enabled. Only accessed by the
+     * main thread.
+     */
+    private ApplyHistory history = null;
+
+    /**
+     * True if the history is kept in a file, and the number of entries appended to the file since it was last
+     * rewritten. Only accessed by the main thread.
+     */
+    private boolean historyPersisting = false;
+
+    private int historyAppends = 0;
+
+    /**
+     * The stack sizes of the worlds that have their own, compiled for the applied profile.
+     */
+    private volatile WorldOverlays overlays = WorldOverlays.empty();
+
+    /**
+     * The world whose stack sizes are applied on top of the base stack sizes, or null if only the base stack sizes
+     * are applied. Only accessed by the main thread.
+     */
+    private String context = null;
+
+    /**
+     * Applies the stack sizes of a context switch, and counts the materials that changed.
+     */
+    private final WorldOverlays.Target contextTarget = this::contextApply;
+
+    private int contextSwapMaterials = 0;
+
+    public Stacksize() {
+        super();
+    }
+
+    /**
+     * Create the plugin outside of a server, for benchmarks and simulations.
+     */
+    Stacksize(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
+
+    /**
+     * Apply the stack sizes cached by the last run, so that they are in place before other plugins are enabled and
+     * worlds are loaded. The configuration is not parsed. If the cache is missing or stale, nothing is done here,
+     * and the configuration is parsed and applied in onEnable as usual.
      */
-    private Map<Material, Integer> vanillaStackSizes = new HashMap<>();;
+    @Override
+    public void onLoad() {
+        Path folder = this.getDataFolder().toPath();
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(folder.resolve("config.yml"));
+        } catch (IOException e) {
+            // A missing configuration is created in onEnable.
+            return;
+        }
+        VersionAdapter adapter;
+        try {
+            adapter = VersionAdapter.probe(this.packageVersion());
+        } catch (VersionAdapter.UnsupportedVersionException e) {
+            // Reported in onEnable.
+            return;
+        }
+        String fingerprint = ConfigurationWriter.fingerprint(contents);
+        StackSizeTable cached;
+        String shardsFingerprint;
+        try {
+            shardsFingerprint = StackSizeShards.fingerprint(folder.resolve(StackSizeShards.DIRECTORY));
+            cached = this.stackSizeCache(adapter, fingerprint, shardsFingerprint).read(folder.resolve(StackSizeCache.FILE_NAME));
+        } catch (IOException e) {
+            this.getLogger().warning(String.format("Unable to read the stack size cache: %s", e));
+            return;
+        }
+        if (cached == null) {
+            return;
+        }
+        this.adapter = adapter;
+        StackSizeChanges changes = this.applyStackSizes(changedStackSizes(cached, this.appliedStackSizes, this.vanillaStackSizes), false);
+        this.cachedFingerprint = fingerprint;
+        this.cachedShardsFingerprint = shardsFingerprint;
+        this.cachedStackSizeVersion = this.stackSizeVersion;
+        this.getLogger().info(String.format("Applied %d cached stack size(s).", changes.getChanges().size()));
+    }
 
     @Override
     public void onEnable() {
         this.path = Paths.get(this.getDataFolder().getPath());
+        this.configurationWriter = new ConfigurationWriter(this.path.resolve("config.yml"), this.getLogger());
+        this.changeLog = new ChangeLog(this.getLogger(), this.configurationWriter::submit, this.path.resolve(ChangeLog.FILE_NAME));
         // Create a configuration file in the plugin's directory if it does not exist.
         saveDefaultConfig();
         // Upgrade the configuration to the latest version if needed.
         this.configurationUpgrade();
-        // Read configuration and modify the server's item stack sizes.
-        this.reloadStackSizes(this.isLoggingStackSizeChanges());
+        // Resolve the server internals once. Nothing can be modified if they are missing.
+        try {
+            this.adapter = VersionAdapter.probe(this.packageVersion());
+        } catch (VersionAdapter.UnsupportedVersionException e) {
+            this.getLogger().severe(e.getMessage());
+            // If the server requires this plugin to work, shutdown the server.
+            if (this.getConfig().getBoolean("required")) {
+                this.getLogger().severe("Server requires plugin to work correctly. Shutting down server.");
+                this.getServer().shutdown();
+            }
+            this.getServer().getPluginManager().disablePlugin(this);
+            return;
+        }
+        this.initialize(this.adapter);
+        this.statisticsRegister();
+        // Let other plugins look up stack sizes. The server unregisters the service when the plugin is disabled.
+        this.getServer().getServicesManager().register(StacksizeService.class, this.service, this, ServicePriority.Normal);
+        // Record every applied batch from now on, so that it can be rolled back.
+        this.historyEnable();
+        // Start syncing before stack sizes are applied, so that a follower applies the authority's stack sizes.
+        if (!this.syncEnable()) {
+            return;
+        }
+        // Read configuration and stack size files and modify the server's item stack sizes.
+        this.reloadStackSizes(this.shards.update(this.getDataFolder().toPath().resolve(StackSizeShards.DIRECTORY), this.getLogger()), this.isLoggingStackSizeChanges());
         // Start a thread watching for configuration changes.
         this.configurationWatcherEnable();
-        // Register the inventory updater.
+        // Register the inventory updater, and flush it once every tick.
         this.getServer().getPluginManager().registerEvents(this, this);
+        this.getServer().getScheduler().runTaskTimer(this, this.resyncQueue, 1, 1);
+        // Normalize oversized stacks a slice at a time, once every tick.
+        this.getServer().getScheduler().runTaskTimer(this, this.normalizer, 1, 1);
+        // Check the profile schedule once every second.
+        this.getServer().getScheduler().runTaskTimer(this, this::profileScheduleCheck, 20, 20);
+        // Keep the stack size cache for the next start up to date.
+        this.getServer().getScheduler().runTaskTimer(this, this::stackSizeCacheCheck, 20, 20);
+        // Count the world context switches of every tick.
+        this.getServer().getScheduler().runTaskTimer(this, this.statistics::contextTicked, 1, 1);
+        // Publish changed stack sizes to the followers once every second.
+        this.getServer().getScheduler().runTaskTimer(this, this::syncCheck, 20, 20);
+    }
+
+    /**
+     * @return The package version of the server internals. The simulator overrides it, since its stand-in server
+     * is not in a versioned package.
+     */
+    String packageVersion() {
+        return VersionAdapter.packageVersion(this.getServer());
+    }
+
+    /**
+     * Set up the plugin's state for a server version. Does not start threads, tasks or listeners, so that
+     * benchmarks and simulations can run the plugin without a server.
+     *
+     * @param adapter The server version adapter.
+     */
+    void initialize(VersionAdapter adapter) {
+        this.adapter = adapter;
+        for (String unsupported : adapter.getUnsupported()) {
+            this.getLogger().warning(String.format("Not supported on this server version: %s.", unsupported));
+        }
+        this.resyncQueue = new InventoryResyncQueue(adapter, this.getLogger(), this.statistics);
+        this.normalizer = new StackNormalizer(this);
+        this.service = new StacksizeSnapshotService(this, this.vanillaStackSizes);
+        this.materialIndex = MaterialIndex.build(material -> this.getServer().getUnsafe().fromLegacy(material));
+        this.tagsRead();
+    }
+
+    /**
+     * Read the item and block tags of the server. Must be called on the main thread.
+     */
+    private void tagsRead() {
+        Map<String, Set<Material>> tags = new HashMap<>();
+        for (String registry : new String[] { Tag.REGISTRY_BLOCKS, Tag.REGISTRY_ITEMS }) {
+            Iterable<Tag<Material>> registryTags = this.getServer().getTags(registry, Material.class);
+            if (registryTags == null) {
+                continue;
+            }
+            for (Tag<Material> tag : registryTags) {
+                tags.put(tag.getKey().toString(), Collections.unmodifiableSet(new HashSet<>(tag.getValues())));
+            }
+        }
+        this.tags = tags;
     }
 
     public void onDisable() {
-        for (Material material : vanillaStackSizes.keySet()) {
-            this.resetStackSize(material, this.isLoggingStackSizeChanges());
+        // Stop syncing first, so that resetting the stack sizes is not published.
+        if (this.sync != null) {
+            this.sync.close();
+            this.sync = null;
+        }
+        if (this.resyncQueue != null) {
+            this.resyncQueue.clear();
         }
+        if (this.normalizer != null) {
+            this.normalizer.clear();
+        }
+        this.applyStackSizes(changedStackSizes(new StackSizeTable(), this.appliedStackSizes, this.vanillaStackSizes), this.isLoggingStackSizeChanges());
         this.configurationWatcherDisable();
+        this.statisticsUnregister();
+        // Finish pending configuration writes.
+        if (this.configurationWriter != null) {
+            this.configurationWriter.close();
+        }
+    }
+
+    /**
+     * Register the statistics with the platform MBean server, replacing statistics left by an earlier instance
+     * of the plugin. Failure is logged, but does not stop the plugin.
+     */
+    private void statisticsRegister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(StacksizeStatistics.OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(this.statistics, StacksizeStatisticsMXBean.class, true), name);
+        } catch (JMException e) {
+            this.getLogger().warning(String.format("Unable to register statistics MBean: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Unregister the statistics from the platform MBean server.
+     */
+    private void statisticsUnregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(StacksizeStatistics.OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            this.getLogger().warning(String.format("Unable to unregister statistics MBean: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * @return The plugin's runtime statistics.
+     */
+    StacksizeStatistics getStatistics() {
+        return this.statistics;
     }
 
     /**
@@ -81,7 +470,9 @@ public class Stacksize extends JavaPlugin implements Listener {
     public void configurationWatcherEnable() {
         //
         this.configurationWatcherDisable();
-        this.watcherThread = new Thread(new ConfigurationWatcher(this, this.path));
+        this.watcher = new ConfigurationWatcher(this, this.path, this.configurationWriter, this.configurationFingerprint, this.settings.getWatcherDebounce());
+        this.watcherThread = new Thread(this.watcher, "Stacksize configuration watcher");
+        this.watcherThread.setDaemon(true);
         this.watcherThread.start();
     }
 
@@ -100,56 +491,209 @@ public class Stacksize extends JavaPlugin implements Listener {
     public void configurationUpgrade() {
         // Find current configuration version. Assume missing config key means version 1.
         int version = this.getConfig().getInt("version", 1);
-        // Version 2 is current.
-        if (version == 2) {
-
         // Upgrade from version 1 to 2.
-        } else if (version == 1) {
+        if (version == 1) {
             this.getConfig().set("version", 2);
             this.getConfig().set("required", false);
-            this.getConfig().set("log", Arrays.asList(LOG_CONFIGURATION_MODIFICATION, LOG_STACKSIZE_MODIFICATION));
+            this.getConfig().set("log", Arrays.asList(StacksizeSettings.LOG_CONFIGURATION_MODIFICATION, StacksizeSettings.LOG_STACKSIZE_MODIFICATION));
             this.saveConfig();
+            version = 2;
+        }
+        // Upgrade from version 2 to 3.
+        if (version == 2) {
+            this.getConfig().set("version", 3);
+            this.getConfig().set("watcherDebounce", StacksizeSettings.DEFAULT_WATCHER_DEBOUNCE);
+            this.saveConfig();
+            version = 3;
+        }
+        // Upgrade from version 3 to 4.
+        if (version == 3) {
+            this.getConfig().set("version", 4);
+            this.getConfig().set("normalize", false);
+            this.getConfig().set("normalizerBudget", StacksizeSettings.DEFAULT_NORMALIZER_BUDGET);
+            this.saveConfig();
+            version = 4;
+        }
+        // Upgrade from version 4 to 5.
+        if (version == 4) {
+            this.getConfig().set("version", 5);
+            this.getConfig().set("sync.mode", StackSizeSync.MODE_OFF);
+            this.getConfig().set("sync.node", "");
+            this.getConfig().set("sync.transport", "journal");
+            this.getConfig().set("sync.journal", "sync");
+            this.getConfig().set("sync.address", "127.0.0.1:25580");
+            this.getConfig().set("sync.interval", StackSizeSync.DEFAULT_INTERVAL);
+            this.saveConfig();
+            version = 5;
+        }
+        // Upgrade from version 5 to 6.
+        if (version == 5) {
+            this.getConfig().set("version", 6);
+            this.getConfig().set("history.size", ApplyHistory.DEFAULT_SIZE);
+            this.getConfig().set("history.persist", false);
+            this.saveConfig();
+            version = 6;
+        }
+        // Upgrade from version 6 to 7.
+        if (version == 6) {
+            this.getConfig().set("version", 7);
+            this.getConfig().set("changeJournal", false);
+            this.saveConfig();
+            version = 7;
+        }
+        // Version 7 is current. Otherwise, do nothing since upgrade method is unknown.
+    }
 
-        // Otherwise, do nothing since upgrade method is unknown.
-        } else {
-
+    /**
+     * Get the loaded configuration. The configuration is replaced, not modified, when the configuration file
+     * is reloaded.
+     */
+    @Override
+    public FileConfiguration getConfig() {
+        if (this.configuration == null) {
+            this.reloadConfig();
         }
+        return this.configuration;
     }
 
     /**
-     * Read the modified stack sizes from the configuration.
+     * Read the configuration file. If it is missing or invalid, an empty configuration is loaded.
      */
-    public Map<Material, Integer> configurationReadMaterials() {
-        Map<Material, Integer> stackSizes = new HashMap<>();
-        // Parse the entries in the maxStackSize list and update the corresponding item max stack sizes.
-        Set<String> materials;
+    @Override
+    public void reloadConfig() {
+        Path file = this.getDataFolder().toPath().resolve("config.yml");
+        byte[] contents;
         try {
-            if (this.getConfig().contains("stackSizes")) {
-                materials = getConfig().getConfigurationSection("stackSizes").getKeys(false);
-            } else {
-                this.getLogger().warning("Configuration is missing the key stackSizes.");
-                return new HashMap<>();
+            contents = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            contents = new byte[0];
+        } catch (IOException e) {
+            this.getLogger().severe(String.format("Cannot load %s: %s", file, e));
+            contents = new byte[0];
+        }
+        this.configurationFingerprint = ConfigurationWriter.fingerprint(contents);
+        try {
+            this.configuration = this.configurationParse(contents);
+        } catch (InvalidConfigurationException e) {
+            this.getLogger().severe(String.format("Cannot load %s: %s", file, e.getMessage()));
+            try {
+                this.configuration = this.configurationParse(new byte[0]);
+            } catch (InvalidConfigurationException impossible) {
+                throw new IllegalStateException(impossible);
             }
-        } catch (NullPointerException e) {
-            this.getLogger().warning("Unable to read keys.");
-            return new HashMap<>();
         }
-        for (String mMaterial : materials) {
-            Material material = Material.matchMaterial(mMaterial);
-            if (material == null) {
-                this.getLogger().warning(String.format("Unable to match \"%s\" to a material. Skipping.", mMaterial));
+    }
+
+    /**
+     * Parse configuration file contents, with the default configuration as defaults. Does not modify the
+     * plugin, so it may be called from any thread.
+     *
+     * @param contents The contents of a configuration file.
+     * @return The parsed configuration.
+     * @throws InvalidConfigurationException If the contents are not valid YAML.
+     */
+    YamlConfiguration configurationParse(byte[] contents) throws InvalidConfigurationException {
+        YamlConfiguration configuration = new YamlConfiguration();
+        configuration.loadFromString(new String(contents, StandardCharsets.UTF_8));
+        InputStream defaults = this.getResource("config.yml");
+        if (defaults != null) {
+            configuration.setDefaults(YamlConfiguration.loadConfiguration(new InputStreamReader(defaults, StandardCharsets.UTF_8)));
+        }
+        return configuration;
+    }
+
+    /**
+     * Compile the stackSizes rules of a configuration into a table. Does not modify the plugin, so it may be
+     * called from any thread.
+     *
+     * @param configuration The configuration.
+     * @return The compiled rules.
+     */
+    StackSizeRules configurationCompileRules(ConfigurationSection configuration) {
+        ConfigurationSection stackSizes = configuration.getConfigurationSection("stackSizes");
+        if (stackSizes == null) {
+            this.getLogger().warning("Configuration is missing the key stackSizes.");
+            return StackSizeRules.empty();
+        }
+        return this.configurationCompileRules(StackSizeRules.empty(), "stackSizes", stackSizes);
+    }
+
+    /**
+     * Compile a section of rules on top of other rules.
+     *
+     * @param base The rules to compile on top of.
+     * @param origin Where the rules are from, for reporting.
+     * @param section The section holding the rules.
+     * @return The compiled rules.
+     */
+    private StackSizeRules configurationCompileRules(StackSizeRules base, String origin, ConfigurationSection section) {
+        return StackSizeRules.compile(base, origin, section.getValues(false), this::materialLookup, this::tagLookup, this.getLogger());
+    }
+
+    /**
+     * Read the stack sizes, profiles and schedule from a configuration, and compile every profile into a table.
+     * The stack size files are compiled on top of the stackSizes, and the profiles on top of both. Does not modify
+     * the plugin, so it may be called from any thread.
+     *
+     * @param configuration The configuration.
+     * @param shards The parsed stack size files.
+     * @return The compiled profiles.
+     */
+    StackSizeProfiles configurationReadProfiles(ConfigurationSection configuration, StackSizeShards shards) {
+        StackSizeRules base = shards.compile(this.configurationCompileRules(configuration), this::materialLookup, this::tagLookup, this.getLogger());
+        Map<String, StackSizeRules> tables = new HashMap<>();
+        ConfigurationSection profiles = configuration.getConfigurationSection("profiles");
+        if (profiles != null) {
+            for (String name : profiles.getKeys(false)) {
+                if (name.equals(StackSizeProfiles.DEFAULT)) {
+                    this.getLogger().warning(String.format("The profile name \"%s\" is reserved for stackSizes. Skipping.", name));
+                    continue;
+                }
+                ConfigurationSection profile = profiles.getConfigurationSection(name);
+                if (profile == null) {
+                    this.getLogger().warning(String.format("Profile \"%s\" is not a list of stack sizes. Skipping.", name));
+                    continue;
+                }
+                tables.put(name, this.configurationCompileRules(base, "profile " + name, profile));
+            }
+        }
+        List<StackSizeProfiles.ScheduleEntry> schedule = new ArrayList<>();
+        for (Map<?, ?> entry : configuration.getMapList("schedule")) {
+            Object name = entry.get("profile");
+            if (name == null || !(tables.containsKey(name.toString()) || name.toString().equals(StackSizeProfiles.DEFAULT))) {
+                this.getLogger().warning(String.format("Schedule entry has an unknown profile: \"%s\". Skipping.", name));
                 continue;
             }
-            int maxStackSize;
             try {
-                maxStackSize = getConfig().getInt("stackSizes." + mMaterial);
-            } catch (NumberFormatException e) {
-                this.getLogger().warning(String.format("Unable to parse integer: \"%s\". Skipping.", getConfig().getString("stackSizes." + mMaterial)));
-                continue;
+                LocalTime from = LocalTime.parse(String.valueOf(entry.get("from")));
+                LocalTime to = LocalTime.parse(String.valueOf(entry.get("to")));
+                schedule.add(new StackSizeProfiles.ScheduleEntry(name.toString(), from, to));
+            } catch (DateTimeParseException e) {
+                this.getLogger().warning(String.format("Unable to parse the times of the schedule entry for \"%s\": %s. Skipping.", name, e.getMessage()));
             }
-            stackSizes.put(material, maxStackSize);
         }
-        return stackSizes;
+        return new StackSizeProfiles(base, tables, schedule);
+    }
+
+    /**
+     * Select the profile to apply: the scheduled profile if a schedule entry is active, otherwise the profile
+     * named by the profile key. Does not modify the plugin, so it may be called from any thread.
+     *
+     * @param configuration The configuration.
+     * @param profiles The compiled profiles of the configuration.
+     * @param scheduled The currently scheduled profile, or null.
+     * @return The name of an existing profile.
+     */
+    String configurationSelectProfile(ConfigurationSection configuration, StackSizeProfiles profiles, String scheduled) {
+        if (scheduled != null) {
+            return scheduled;
+        }
+        String name = configuration.getString("profile", StackSizeProfiles.DEFAULT);
+        if (profiles.get(name) == null) {
+            this.getLogger().warning(String.format("Unknown profile \"%s\". Using the %s profile.", name, StackSizeProfiles.DEFAULT));
+            return StackSizeProfiles.DEFAULT;
+        }
+        return name;
     }
 
     /**
@@ -166,30 +710,520 @@ public class Stacksize extends JavaPlugin implements Listener {
         this.getConfig().set("stackSizes." + material.name(), null);
     }
 
+    /**
+     * Save the configuration asynchronously. Saves that happen in quick succession are written once. The
+     * configuration watcher recognizes the written file and does not reload it.
+     */
     @Override
     public void saveConfig() {
-        this.configurationWatcherDisable();
-        super.saveConfig();
-        this.configurationWatcherEnable();
+        this.configurationFingerprint = this.configurationWriter.write(this.getConfig().saveToString());
+    }
+
+    /**
+     * Loads/reloads stack sizes from the configuration and modifies the server stack sizes. The configured
+     * stack sizes are compared with the currently applied ones, and only materials whose stack size differs
+     * are modified. Materials that are no longer configured are reset to their Vanilla size in the same pass.
+     *
+     * @param log Log changes to the maximum stack sizes.
+     * @return The materials that were changed.
+     */
+    public StackSizeChanges reloadStackSizes(boolean log) {
+        return this.reloadStackSizes(this.shards, log);
     }
 
     /**
-     * Loads/reloads stack sizes from the configuration and modifies the server stack sizes.
+     * Replace the stack size files, and reload stack sizes from the loaded configuration and the new files.
      *
+     * @param shards The parsed stack size files.
      * @param log Log changes to the maximum stack sizes.
+     * @return The materials that were changed.
      */
-    public void reloadStackSizes(boolean log) {
-        // Reset stack sizes.
-        for (Map.Entry<Material, Integer> entry : this.vanillaStackSizes.entrySet()) {
-            Material material = entry.getKey();
-            int stackSize = entry.getValue();
-            modifyStackSize(material, stackSize, log);
+    StackSizeChanges reloadStackSizes(StackSizeShards shards, boolean log) {
+        long start = System.nanoTime();
+        // Read stack sizes, compile the profiles and publish the new settings.
+        this.tagsRead();
+        this.shards = shards;
+        StackSizeProfiles profiles = this.configurationReadProfiles(this.getConfig(), shards);
+        String scheduled = profiles.scheduled(LocalTime.now());
+        String profile;
+        // A profile applied by command during a schedule entry stays until the schedule changes.
+        if (scheduled != null && this.scheduleChecked && scheduled.equals(this.scheduledProfile) && profiles.get(this.settings.getProfile()) != null) {
+            profile = this.settings.getProfile();
+        } else {
+            profile = this.configurationSelectProfile(this.getConfig(), profiles, scheduled);
         }
-        // Read stack sizes.
-        Map<Material, Integer> materials = this.configurationReadMaterials();
+        this.scheduledProfile = scheduled;
+        this.scheduleChecked = true;
+        StacksizeSettings settings = StacksizeSettings.compile(this.getConfig(), profiles, profile, this.settings.getVersion() + 1);
+        this.settings = settings;
+        this.overlaysCompile(this.getConfig(), settings);
         // Modify stack sizes.
-        for (Map.Entry<Material, Integer> material : materials.entrySet()) {
-            modifyStackSize(material.getKey(), material.getValue(), log);
+        StackSizeChanges changes = this.applyStackSizes(changedStackSizes(this.configuredStackSizes(settings), this.appliedStackSizes, this.vanillaStackSizes), log);
+        this.statistics.reloaded(System.nanoTime() - start, changes.getChanges().size());
+        return changes;
+    }
+
+    /**
+     * Replace the loaded configuration with one read by the configuration watcher, and apply the stack sizes
+     * that the watcher found to be changed. If stack sizes were modified after the watcher took its snapshot, or
+     * world stack sizes may have been applied on top of the ones it saw, the changes are computed again.
+     *
+     * @param configuration The new configuration.
+     * @param fingerprint The fingerprint of the configuration file contents.
+     * @param shards The stack size files the profiles were compiled with.
+     * @param profiles The profiles compiled from the configuration.
+     * @param profile The name of the profile to apply.
+     * @param changed The changed stack sizes, computed against the snapshot.
+     * @param snapshot The snapshot the changes were computed against.
+     * @return The materials that were changed.
+     */
+    StackSizeChanges applyConfiguration(FileConfiguration configuration, String fingerprint, StackSizeShards shards, StackSizeProfiles profiles, String profile, StackSizeTable changed, StackSizeSnapshot snapshot) {
+        long start = System.nanoTime();
+        // The watcher read the current sizes of materials it has no Vanilla size for from the server, which may
+        // have been those of a world.
+        boolean contextual = !this.overlays.isEmpty();
+        StacksizeSettings settings = StacksizeSettings.compile(configuration, profiles, profile, this.settings.getVersion() + 1);
+        this.configuration = configuration;
+        this.configurationFingerprint = fingerprint;
+        this.shards = shards;
+        this.settings = settings;
+        this.overlaysCompile(configuration, settings);
+        // The schedule may have moved on since the watcher selected the profile.
+        this.scheduleChecked = false;
+        if (this.watcher != null) {
+            this.watcher.setDebounce(settings.getWatcherDebounce());
+        }
+        if (snapshot.getVersion() != this.stackSizeVersion || this.isFollowing() || contextual) {
+            changed = changedStackSizes(this.configuredStackSizes(settings), this.appliedStackSizes, this.vanillaStackSizes);
+        }
+        StackSizeChanges changes = this.applyStackSizes(changed, settings.isLoggingStackSizeChanges());
+        this.statistics.reloaded(System.nanoTime() - start, changes.getChanges().size());
+        return changes;
+    }
+
+    /**
+     * Apply a profile. Only materials whose applied stack size differs from the profile's table are modified.
+     *
+     * @param name The name of an existing profile.
+     * @param log Log changes to the maximum stack sizes.
+     * @return The materials that were changed.
+     */
+    StackSizeChanges switchProfile(String name, boolean log) {
+        StacksizeSettings settings = this.settings.withProfile(name);
+        this.settings = settings;
+        this.overlaysCompile(this.getConfig(), settings);
+        return this.applyStackSizes(changedStackSizes(this.configuredStackSizes(settings), this.appliedStackSizes, this.vanillaStackSizes), log);
+    }
+
+    /**
+     * Apply the stack sizes a follower received from the sync authority.
+     *
+     * @return The materials that were changed.
+     */
+    StackSizeChanges applySynced() {
+        long start = System.nanoTime();
+        StackSizeChanges changes = this.applyStackSizes(changedStackSizes(this.configuredStackSizes(this.settings), this.appliedStackSizes, this.vanillaStackSizes), this.isLoggingStackSizeChanges());
+        this.statistics.reloaded(System.nanoTime() - start, changes.getChanges().size());
+        return changes;
+    }
+
+    /**
+     * @param settings The compiled settings.
+     * @return The stack sizes to apply: the sync authority's stack sizes on a follower, otherwise the settings'
+     * table.
+     */
+    private StackSizeTable configuredStackSizes(StacksizeSettings settings) {
+        StackSizeSync sync = this.sync;
+        if (sync != null && !sync.isAuthority()) {
+            return sync.getTable();
+        }
+        return settings.getTable();
+    }
+
+    /**
+     * Compile the world stack sizes for the applied profile. The base stack sizes are restored first, with the
+     * overlays they were applied from.
+     *
+     * @param configuration The configuration.
+     * @param settings The settings compiled from the configuration.
+     */
+    private void overlaysCompile(ConfigurationSection configuration, StacksizeSettings settings) {
+        this.contextReset();
+        ConfigurationSection worlds = configuration.getConfigurationSection("worlds");
+        this.overlays = worlds == null ? WorldOverlays.empty() : WorldOverlays.compile(settings.getProfiles().getRules(settings.getProfile()), worlds, this::materialLookup, this::tagLookup, this.getLogger());
+    }
+
+    /**
+     * Apply the stack sizes of a world if they are not applied already. Only the materials whose stack size differs
+     * between the current and the new context are modified. The applied base stack sizes, the stack size version and
+     * the snapshot are left alone, and nothing is logged, recorded or announced, since a context switch does not
+     * change the configured stack sizes.
+     *
+     * @param world The world the server is about to handle something in.
+     */
+    void contextSwitch(World world) {
+        WorldOverlays overlays = this.overlays;
+        if (overlays.isEmpty() || world == null || this.isFollowing()) {
+            return;
+        }
+        this.contextEnter(overlays.context(world.getName()));
+    }
+
+    /**
+     * Restore the base stack sizes, so that they can be modified, recorded and compared against.
+     */
+    private void contextReset() {
+        this.contextEnter(null);
+    }
+
+    private void contextEnter(String context) {
+        if (Objects.equals(context, this.context)) {
+            return;
+        }
+        this.contextSwapMaterials = 0;
+        this.overlays.swap(this.context, context, this.appliedStackSizes, this.vanillaStackSizes, this.contextTarget);
+        this.context = context;
+        this.statistics.contextSwapped(this.contextSwapMaterials);
+    }
+
+    /**
+     * Apply a stack size of a context switch directly through the adapter.
+     */
+    private void contextApply(int ordinal, int size) {
+        Material material = StackSizeTable.material(ordinal);
+        int oldSize = material.getMaxStackSize();
+        if (oldSize == size) {
+            return;
+        }
+        // Remember the Vanilla size, so that it can be restored when the context is left.
+        if (!this.vanillaStackSizes.contains(material)) {
+            this.vanillaStackSizes.put(material, oldSize);
+        }
+        try {
+            this.adapter.setMaxStackSize(material, size);
+            this.contextSwapMaterials++;
+        } catch (Exception ex) {
+            this.statistics.reflectionFailed();
+            ex.printStackTrace();
+            this.getLogger().severe(String.format("Reflection error while modifying maximum stack size of %s.", material.name()));
+            // If the server requires this plugin to work, shutdown the server.
+            if (this.settings.isRequired()) {
+                this.getLogger().severe("Server requires plugin to work correctly. Shutting down server.");
+                this.getServer().shutdown();
+            }
+        }
+    }
+
+    /**
+     * Switch context to the world of an event before other plugins and the server handle it.
+     */
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        this.contextSwitch(event.getPlayer().getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onInventoryClickContext(InventoryClickEvent event) {
+        this.contextSwitch(event.getWhoClicked().getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onInventoryDragContext(InventoryDragEvent event) {
+        this.contextSwitch(event.getWhoClicked().getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onEntityPickupItem(EntityPickupItemEvent event) {
+        this.contextSwitch(event.getEntity().getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onInventoryMoveItem(InventoryMoveItemEvent event) {
+        Location location = event.getSource().getLocation();
+        if (location != null) {
+            this.contextSwitch(location.getWorld());
+        }
+    }
+
+    /**
+     * @return True if this server applies the stack sizes of a sync authority instead of its own.
+     */
+    boolean isFollowing() {
+        StackSizeSync sync = this.sync;
+        return sync != null && !sync.isAuthority();
+    }
+
+    /**
+     * Start syncing if the configuration enables it. An invalid sync section is handled like an unsupported
+     * server version.
+     *
+     * @return False if the plugin was disabled.
+     */
+    private boolean syncEnable() {
+        ConfigurationSection section = this.getConfig().getConfigurationSection("sync");
+        if (section == null) {
+            return true;
+        }
+        try {
+            this.sync = StackSizeSync.create(this, section, this.path);
+        } catch (IOException | IllegalArgumentException e) {
+            this.getLogger().severe(String.format("Unable to start syncing stack sizes: %s", e.getMessage()));
+            // If the server requires this plugin to work, shutdown the server.
+            if (this.getConfig().getBoolean("required")) {
+                this.getLogger().severe("Server requires plugin to work correctly. Shutting down server.");
+                this.getServer().shutdown();
+            }
+            this.getServer().getPluginManager().disablePlugin(this);
+            return false;
+        }
+        if (this.sync != null) {
+            this.sync.start();
+        }
+        return true;
+    }
+
+    /**
+     * Publish the applied stack sizes to the followers if they have changed since they were last published.
+     */
+    private void syncCheck() {
+        StackSizeSync sync = this.sync;
+        if (sync == null || !sync.isAuthority() || this.stackSizeVersion == this.syncedStackSizeVersion) {
+            return;
+        }
+        this.syncedStackSizeVersion = this.stackSizeVersion;
+        sync.publish(this.stackSizeSnapshot.getApplied());
+    }
+
+    /**
+     * Switch profile if the profile selected by the schedule has changed since the last check. A profile
+     * switched to with a command stays applied until the schedule changes.
+     */
+    private void profileScheduleCheck() {
+        StacksizeSettings settings = this.settings;
+        String scheduled = settings.getProfiles().scheduled(LocalTime.now());
+        if (this.scheduleChecked && Objects.equals(scheduled, this.scheduledProfile)) {
+            return;
+        }
+        this.scheduledProfile = scheduled;
+        this.scheduleChecked = true;
+        String profile = this.configurationSelectProfile(this.getConfig(), settings.getProfiles(), scheduled);
+        if (!profile.equals(settings.getProfile())) {
+            StackSizeChanges changes = this.switchProfile(profile, settings.isLoggingStackSizeChanges());
+            if (settings.isLoggingConfigurationModification()) {
+                this.getLogger().info(String.format("Switched to profile %s by schedule. %s", profile, changes.summary()));
+            }
+        }
+    }
+
+    /**
+     * Write the applied stack sizes to the cache if they, the configuration file or the stack size files have changed
+     * since the cache was last written. The file is written on the configuration writer thread.
+     *
+     * The cache is deleted instead if the configuration has a schedule, since the profile to apply depends on the
+     * time of the next start, which onLoad cannot tell without parsing the configuration. It is also deleted if the
+     * applied stack sizes are not those of the local configuration, such as after a rollback or on a sync follower,
+     * since onEnable would revert them right away. The configuration is then applied in onEnable.
+     */
+    private void stackSizeCacheCheck() {
+        String fingerprint = this.configurationFingerprint;
+        String shardsFingerprint = this.shards.getFingerprint();
+        if (fingerprint == null || (fingerprint.equals(this.cachedFingerprint) && shardsFingerprint.equals(this.cachedShardsFingerprint) && this.stackSizeVersion == this.cachedStackSizeVersion)) {
+            return;
+        }
+        this.cachedFingerprint = fingerprint;
+        this.cachedShardsFingerprint = shardsFingerprint;
+        this.cachedStackSizeVersion = this.stackSizeVersion;
+        StackSizeCache cache = this.stackSizeCache(this.adapter, fingerprint, shardsFingerprint);
+        StackSizeTable applied = this.stackSizeSnapshot.getApplied();
+        StacksizeSettings settings = this.settings;
+        boolean cacheable = !settings.getProfiles().isScheduled() && changedStackSizes(settings.getTable(), this.appliedStackSizes, this.vanillaStackSizes).size() == 0;
+        Path file = this.path.resolve(StackSizeCache.FILE_NAME);
+        this.configurationWriter.submit(() -> {
+            try {
+                if (!cacheable) {
+                    Files.deleteIfExists(file);
+                } else {
+                    cache.write(file, applied);
+                }
+            } catch (IOException e) {
+                this.getLogger().warning(String.format("Unable to write the stack size cache: %s", e));
+            }
+        });
+    }
+
+    /**
+     * @param adapter The server version adapter.
+     * @param fingerprint The fingerprint of the configuration file contents.
+     * @param shardsFingerprint The fingerprint of the stack size files.
+     * @return The stack size cache for this plugin version, server version, configuration and stack size files.
+     */
+    private StackSizeCache stackSizeCache(VersionAdapter adapter, String fingerprint, String shardsFingerprint) {
+        return new StackSizeCache(this.getDescription().getVersion(), adapter.getPackageVersion(), fingerprint, shardsFingerprint);
+    }
+
+    /**
+     * Build the table that must be applied for the given configured stack sizes to take effect. Only materials
+     * whose applied size differs are included. Materials that are currently modified but not configured are
+     * given their Vanilla size. Does not read the plugin's state, so it may be called from any thread.
+     *
+     * @param configured The configured stack sizes.
+     * @param applied The currently applied stack sizes.
+     * @param vanilla The Vanilla stack sizes of modified materials.
+     * @return The stack sizes to apply.
+     */
+    static StackSizeTable changedStackSizes(StackSizeTable configured, StackSizeTable applied, StackSizeTable vanilla) {
+        StackSizeTable stackSizes = new StackSizeTable();
+        for (int i = configured.next(0); i >= 0; i = configured.next(i + 1)) {
+            int size = configured.get(i, 0);
+            int current = applied.get(i, vanilla.get(i, StackSizeTable.material(i).getMaxStackSize()));
+            if (size != current) {
+                stackSizes.put(i, size);
+            }
+        }
+        for (int i = applied.next(0); i >= 0; i = applied.next(i + 1)) {
+            if (!configured.contains(i)) {
+                stackSizes.put(i, vanilla.get(i, 0));
+            }
+        }
+        return stackSizes;
+    }
+
+    /**
+     * @return The parsed files of the stack size directory, safe to use from any thread.
+     */
+    StackSizeShards getShards() {
+        return this.shards;
+    }
+
+    /**
+     * @return A copy of the Vanilla and applied stack sizes, safe to use from any thread.
+     */
+    StackSizeSnapshot getStackSizeSnapshot() {
+        return this.stackSizeSnapshot;
+    }
+
+    /**
+     * Apply a batch of stack sizes in one pass. Materials that already have the given stack size are skipped.
+     *
+     * @param stackSizes The stack sizes to apply.
+     * @param log Log a summary of the changes to the maximum stack sizes.
+     * @return The materials that were changed.
+     */
+    public StackSizeChanges applyStackSizes(StackSizeTable stackSizes, boolean log) {
+        // Batches change the base stack sizes, and are recorded against them.
+        this.contextReset();
+        StackSizeChanges changes = new StackSizeChanges();
+        for (int i = stackSizes.next(0); i >= 0; i = stackSizes.next(i + 1)) {
+            Material material = StackSizeTable.material(i);
+            int oldSize = material.getMaxStackSize();
+            int newSize = stackSizes.get(i, oldSize);
+            if (oldSize == newSize) {
+                continue;
+            }
+            if (this.modifyStackSize(material, newSize, false)) {
+                changes.add(material, oldSize, newSize);
+            } else {
+                changes.fail(material);
+            }
+        }
+        this.stackSizeSnapshot = new StackSizeSnapshot(this.vanillaStackSizes, this.appliedStackSizes, this.stackSizeVersion);
+        // Split existing stacks that are now too large. Not while disabling, when the task no longer runs.
+        if (this.normalizer != null && this.isEnabled() && this.settings.isNormalizing()) {
+            this.normalizer.submit(changes);
+        }
+        // Tell other plugins about the batch. Nobody can listen yet while the plugin is loading.
+        if (this.service != null && !changes.getChanges().isEmpty()) {
+            this.getServer().getPluginManager().callEvent(new StackSizesChangedEvent(changes, this.stackSizeVersion));
+        }
+        // Log the batch as one summary, off the main thread once the plugin is enabled.
+        if (this.changeLog != null) {
+            this.changeLog.submit(changes, this.stackSizeVersion, log, this.settings.isJournaling());
+        } else if (log && !changes.isEmpty()) {
+            this.getLogger().info(ChangeLog.summary(changes, this.stackSizeVersion));
+        }
+        // Record the batch. Not while disabling, when every stack size is reset.
+        if (this.history != null && this.isEnabled()) {
+            this.historyRecord(changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Create the history from the configuration, and read the history file if the history is kept in one.
+     */
+    private void historyEnable() {
+        this.history = new ApplyHistory(this.getConfig().getInt("history.size", ApplyHistory.DEFAULT_SIZE));
+        this.historyPersisting = this.getConfig().getBoolean("history.persist");
+        this.historyAppends = 0;
+        if (!this.historyPersisting) {
+            return;
+        }
+        Path file = this.path.resolve(ApplyHistory.FILE_NAME);
+        if (!Files.exists(file)) {
+            return;
+        }
+        int lines = 0;
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                lines++;
+                try {
+                    this.history.add(ApplyHistory.Entry.decode(line));
+                } catch (IllegalArgumentException e) {
+                    this.getLogger().warning(String.format("Skipping an entry of %s: %s", ApplyHistory.FILE_NAME, e.getMessage()));
+                }
+            }
+        } catch (IOException e) {
+            this.getLogger().warning(String.format("Unable to read %s: %s", ApplyHistory.FILE_NAME, e));
+        }
+        // Lines the history no longer holds count as appended, so that a file grown across restarts is rewritten.
+        this.historyAppends = Math.max(0, lines - this.history.size());
+    }
+
+    /**
+     * Record a batch of changes in the history, and append it to the history file on the configuration writer
+     * thread. Once the file holds as many appended entries as the history, it is rewritten with only the entries
+     * in the history.
+     *
+     * @param changes The changes.
+     */
+    private void historyRecord(StackSizeChanges changes) {
+        ApplyHistory.Entry entry = this.history.record(changes, System.currentTimeMillis());
+        if (entry == null || !this.historyPersisting) {
+            return;
+        }
+        Path file = this.path.resolve(ApplyHistory.FILE_NAME);
+        if (++this.historyAppends < this.history.capacity()) {
+            String line = entry.encode() + "\n";
+            this.configurationWriter.submit(() -> {
+                try {
+                    Files.write(file, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    this.getLogger().warning(String.format("Unable to write %s: %s", ApplyHistory.FILE_NAME, e));
+                }
+            });
+        } else {
+            this.historyAppends = 0;
+            List<ApplyHistory.Entry> entries = this.history.getEntries();
+            StringBuilder contents = new StringBuilder();
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                contents.append(entries.get(i).encode()).append('\n');
+            }
+            this.configurationWriter.submit(() -> {
+                try {
+                    Path temporaryFile = file.resolveSibling(ApplyHistory.FILE_NAME + ".tmp");
+                    Files.write(temporaryFile, contents.toString().getBytes(StandardCharsets.UTF_8));
+                    try {
+                        Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } catch (IOException e) {
+                    this.getLogger().warning(String.format("Unable to write %s: %s", ApplyHistory.FILE_NAME, e));
+                }
+            });
         }
     }
 
@@ -201,8 +1235,10 @@ public class Stacksize extends JavaPlugin implements Listener {
      * @return
      */
     public boolean resetStackSize(Material material, boolean log) {
-        if (vanillaStackSizes.containsKey(material)) {
-            return modifyStackSize(material, vanillaStackSizes.get(material), log);
+        if (this.vanillaStackSizes.contains(material)) {
+            StackSizeTable stackSizes = new StackSizeTable();
+            stackSizes.put(material, this.vanillaStackSizes.get(material, 0));
+            return this.applyStackSizes(stackSizes, log).getFailures().isEmpty();
         } else {
             return true;
         }
@@ -222,6 +1258,7 @@ public class Stacksize extends JavaPlugin implements Listener {
             this.getLogger().warning(String.format("%s is not an item.", material.name()));
             return false;
         }
+        this.contextReset();
         // Do nothing if the stack size is already correct.
         if (material.getMaxStackSize() == size) {
             if (log) {
@@ -229,36 +1266,29 @@ public class Stacksize extends JavaPlugin implements Listener {
             }
             return true;
         }
-        // Add the original stack size of a material to the map if it is not there.
-        if (!this.vanillaStackSizes.containsKey(material)) {
+        // Add the original stack size of a material to the table if it is not there.
+        if (!this.vanillaStackSizes.contains(material)) {
             this.vanillaStackSizes.put(material, material.getMaxStackSize());
         }
         try {
-            // Get the server package version.
-            // In 1.14, the package that the server class CraftServer is in, is called "org.bukkit.craftbukkit.v1_14_R1".
-            String packageVersion = this.getServer().getClass().getPackage().getName().split("\\.")[3];
-            // Convert a Material into its corresponding Item by using the getItem method on the Material.
-            Class<?> magicClass = Class.forName("org.bukkit.craftbukkit." + packageVersion + ".util.CraftMagicNumbers");
-            Method method = magicClass.getDeclaredMethod("getItem", Material.class);
-            Object item = method.invoke(null, material);
-            // Get the maxItemStack field in Item and change it.
-            Class<?> itemClass = Class.forName("net.minecraft.server." + packageVersion + ".Item");
-            Field field = itemClass.getDeclaredField("maxStackSize");
-            field.setAccessible(true);
-            field.setInt(item, size);
-            // Change the maxStack field in the Material.
-            Field mf = Material.class.getDeclaredField("maxStack");
-            mf.setAccessible(true);
-            mf.setInt(material, size);
+            this.adapter.setMaxStackSize(material, size);
+            this.stackSizeVersion++;
+            // Track which materials currently differ from their Vanilla size.
+            if (this.vanillaStackSizes.get(material, size) == size) {
+                this.appliedStackSizes.remove(material);
+            } else {
+                this.appliedStackSizes.put(material, size);
+            }
             if (log) {
                 this.getLogger().info(String.format("Applied a maximum stack size of %d to %s.", size, material.name()));
             }
             return true;
         } catch (Exception ex) {
+            this.statistics.reflectionFailed();
             ex.printStackTrace();
             this.getLogger().severe(String.format("Reflection error while modifying maximum stack size of %s.", material.name()));
             // If the server requires this plugin to work, shutdown the server.
-            if (this.getConfig().getBoolean("required")) {
+            if (this.settings.isRequired()) {
                 this.getLogger().severe("Server requires plugin to work correctly. Shutting down server.");
                 this.getServer().shutdown();
             }
@@ -268,22 +1298,35 @@ public class Stacksize extends JavaPlugin implements Listener {
 
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] arguments) {
+        long start = System.nanoTime();
+        try {
+            return this.executeCommand(sender, command, arguments);
+        } finally {
+            this.statistics.commandExecuted(System.nanoTime() - start);
+        }
+    }
+
+    private boolean executeCommand(CommandSender sender, Command command, String[] arguments) {
         if (command.getName().equalsIgnoreCase("stacksize")) {
             if (arguments.length >= 1) {
                 String subCommand = arguments[0];
+                // A follower applies the sync authority's stack sizes, so they can only be changed there.
+                if (this.isFollowing() && (subCommand.equalsIgnoreCase(SUBCOMMAND_MODIFY) || subCommand.equalsIgnoreCase(SUBCOMMAND_RESET) || subCommand.equalsIgnoreCase(SUBCOMMAND_IMPORT) || subCommand.equalsIgnoreCase(SUBCOMMAND_ROLLBACK) || (subCommand.equalsIgnoreCase(SUBCOMMAND_PROFILE) && arguments.length == 2))) {
+                    sender.sendMessage(stringFollowing());
+                    return true;
+                }
                 // view
                 if (subCommand.equalsIgnoreCase(SUBCOMMAND_VIEW)) {
                     if (sender.hasPermission(PERMISSION_VIEW)) {
                         if (arguments.length == 2) {
                             String materialName = arguments[1];
-                            try {
-                                Material material = Material.valueOf(materialName);
-                                sender.sendMessage(stringViewMaterial(material));
-                                return true;
-                            } catch (IllegalArgumentException e) {
+                            Material material = this.materialLookup(materialName);
+                            if (material == null) {
                                 sender.sendMessage(stringInvalidMaterial(materialName));
                                 return true;
                             }
+                            sender.sendMessage(stringViewMaterial(material));
+                            return true;
                         } else {
                             sender.sendMessage(ChatColor.RED + "/stacksize view <material>");
                             return true;
@@ -318,12 +1361,26 @@ public class Stacksize extends JavaPlugin implements Listener {
                 // modify subcommand sets the stack size of a material and adds it to the configuration.
                 } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_MODIFY)) {
                     if (sender.hasPermission(PERMISSION_MODIFY)) {
-                        if (arguments.length == 3) {
+                        if (arguments.length >= 2 && arguments[1].contains("=")) {
+                            // Several material=size pairs are validated, then applied and saved as one batch.
+                            List<StackSizeTableFile.Entry> entries = new ArrayList<>();
+                            for (int i = 1; i < arguments.length; i++) {
+                                String[] pair = arguments[i].split("=", 2);
+                                entries.add(new StackSizeTableFile.Entry(pair[0], pair.length == 2 ? pair[1] : "", arguments[i]));
+                            }
+                            List<String> errors = new ArrayList<>();
+                            StackSizeTable stackSizes = this.validateStackSizes(entries, errors);
+                            if (!errors.isEmpty()) {
+                                sender.sendMessage(stringInvalidEntries(errors));
+                                return true;
+                            }
+                            StackSizeChanges changes = this.modifyStackSizes(stackSizes);
+                            sender.sendMessage(stringModifiedStackSizes(stackSizes.size(), changes));
+                            return true;
+                        } else if (arguments.length == 3) {
                             String materialName = arguments[1];
-                            Material material;
-                            try {
-                                material = Material.valueOf(materialName);
-                            } catch (IllegalArgumentException e) {
+                            Material material = this.materialLookup(materialName);
+                            if (material == null) {
                                 sender.sendMessage(stringInvalidMaterial(materialName));
                                 return true;
                             }
@@ -341,11 +1398,15 @@ public class Stacksize extends JavaPlugin implements Listener {
                             }
                             this.configurationWriteMaterial(material, stackSize);
                             this.saveConfig();
-                            this.reloadStackSizes(this.isLoggingStackSizeChanges());
-                            sender.sendMessage(this.stringModifiedStackSize(materialName, oldSize, stackSize));
+                            StackSizeChanges changes = this.reloadStackSizes(this.isLoggingStackSizeChanges());
+                            if (changes.getFailures().contains(material)) {
+                                sender.sendMessage(this.stringFailedStackSize(material.name()));
+                            } else {
+                                sender.sendMessage(this.stringModifiedStackSize(material.name(), oldSize, stackSize));
+                            }
                             return true;
                         } else {
-                            sender.sendMessage(ChatColor.RED + "/stacksize modify <material> <stacksize>");
+                            sender.sendMessage(ChatColor.RED + "/stacksize modify <material> <stacksize> | <material>=<stacksize>...");
                             return true;
                         }
                     } else {
@@ -355,12 +1416,12 @@ public class Stacksize extends JavaPlugin implements Listener {
                 // reset command resets a stack size of a material to the Vanilla size and removes it from the configuration.
                 } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_RESET)) {
                     if (sender.hasPermission(PERMISSION_MODIFY)) {
-                        if (arguments.length == 2) {
+                        if (arguments.length > 2 || (arguments.length == 2 && StackSizeRules.isGlob(arguments[1]))) {
+                            return this.commandResetBatch(sender, Arrays.copyOfRange(arguments, 1, arguments.length));
+                        } else if (arguments.length == 2) {
                             String materialName = arguments[1];
-                            Material material;
-                            try {
-                                material = Material.valueOf(materialName);
-                            } catch (IllegalArgumentException e) {
+                            Material material = this.materialLookup(materialName);
+                            if (material == null) {
                                 sender.sendMessage(stringInvalidMaterial(materialName));
                                 return true;
                             }
@@ -369,20 +1430,134 @@ public class Stacksize extends JavaPlugin implements Listener {
                                 return true;
                             }
                             int oldSize = material.getMaxStackSize();
-                            int newSize = vanillaStackSizes.containsKey(material) ? vanillaStackSizes.get(material) : material.getMaxStackSize();
+                            int newSize = this.vanillaStackSizes.get(material, material.getMaxStackSize());
                             this.configurationRemoveMaterial(material);
                             this.saveConfig();
-                            this.reloadStackSizes(this.isLoggingStackSizeChanges());
-                            sender.sendMessage(this.stringResetStackSize(materialName, oldSize, newSize));
+                            StackSizeChanges changes = this.reloadStackSizes(this.isLoggingStackSizeChanges());
+                            if (changes.getFailures().contains(material)) {
+                                sender.sendMessage(this.stringFailedStackSize(material.name()));
+                            } else {
+                                sender.sendMessage(this.stringResetStackSize(material.name(), oldSize, newSize));
+                            }
+                            return true;
+                        } else {
+                            sender.sendMessage(ChatColor.RED + "/stacksize reset <material | glob>...");
+                            return true;
+                        }
+                    } else {
+                        sender.sendMessage(stringNoPermission(PERMISSION_MODIFY));
+                        return true;
+                    }
+                // profile subcommand shows the profiles, or applies a profile and makes it the configured profile.
+                } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_PROFILE)) {
+                    if (arguments.length == 1) {
+                        if (sender.hasPermission(PERMISSION_VIEW)) {
+                            sender.sendMessage(stringProfiles());
+                            return true;
+                        } else {
+                            sender.sendMessage(stringNoPermission(PERMISSION_VIEW));
+                            return true;
+                        }
+                    } else if (arguments.length == 2) {
+                        if (sender.hasPermission(PERMISSION_MODIFY)) {
+                            String profile = arguments[1];
+                            if (this.settings.getProfiles().get(profile) == null) {
+                                sender.sendMessage(stringInvalidProfile(profile));
+                                return true;
+                            }
+                            this.getConfig().set("profile", profile);
+                            this.saveConfig();
+                            StackSizeChanges changes = this.switchProfile(profile, this.isLoggingStackSizeChanges());
+                            sender.sendMessage(stringSwitchedProfile(profile, changes));
+                            return true;
+                        } else {
+                            sender.sendMessage(stringNoPermission(PERMISSION_MODIFY));
+                            return true;
+                        }
+                    } else {
+                        sender.sendMessage(ChatColor.RED + "/stacksize profile [profile]");
+                        return true;
+                    }
+                // import subcommand reads a table of stack sizes from a file in the plugin folder and applies it as one batch.
+                } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_IMPORT)) {
+                    if (sender.hasPermission(PERMISSION_MODIFY)) {
+                        if (arguments.length == 2) {
+                            return this.commandImport(sender, arguments[1]);
+                        } else {
+                            sender.sendMessage(ChatColor.RED + "/stacksize import <file>");
+                            return true;
+                        }
+                    } else {
+                        sender.sendMessage(stringNoPermission(PERMISSION_MODIFY));
+                        return true;
+                    }
+                // export subcommand writes the modified stack sizes to a file in the plugin folder.
+                } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_EXPORT)) {
+                    if (sender.hasPermission(PERMISSION_VIEW)) {
+                        if (arguments.length == 2) {
+                            return this.commandExport(sender, arguments[1]);
+                        } else {
+                            sender.sendMessage(ChatColor.RED + "/stacksize export <file>");
+                            return true;
+                        }
+                    } else {
+                        sender.sendMessage(stringNoPermission(PERMISSION_VIEW));
+                        return true;
+                    }
+                // history subcommand lists the most recent batches of applied stack sizes.
+                } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_HISTORY)) {
+                    if (sender.hasPermission(PERMISSION_VIEW)) {
+                        if (arguments.length == 1) {
+                            sender.sendMessage(stringHistory());
+                            return true;
+                        } else {
+                            sender.sendMessage(ChatColor.RED + "/stacksize history");
+                            return true;
+                        }
+                    } else {
+                        sender.sendMessage(stringNoPermission(PERMISSION_VIEW));
+                        return true;
+                    }
+                // rollback subcommand undoes the most recent batches by applying the old sizes of the materials they changed.
+                } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_ROLLBACK)) {
+                    if (sender.hasPermission(PERMISSION_MODIFY)) {
+                        if (arguments.length <= 2) {
+                            int steps;
+                            try {
+                                steps = arguments.length == 2 ? Integer.parseInt(arguments[1]) : 1;
+                            } catch (NumberFormatException e) {
+                                sender.sendMessage(stringInvalidInteger(arguments[1]));
+                                return true;
+                            }
+                            if (steps < 1 || steps > this.history.size()) {
+                                sender.sendMessage(stringInvalidRollback(steps));
+                                return true;
+                            }
+                            StackSizeChanges changes = this.applyStackSizes(this.history.rollback(steps), this.isLoggingStackSizeChanges());
+                            sender.sendMessage(stringRolledBack(steps, changes));
                             return true;
                         } else {
-                            sender.sendMessage(ChatColor.RED + "/stacksize reset <material>");
+                            sender.sendMessage(ChatColor.RED + "/stacksize rollback [steps]");
                             return true;
                         }
                     } else {
                         sender.sendMessage(stringNoPermission(PERMISSION_MODIFY));
                         return true;
                     }
+                // stats subcommand shows what the plugin has done and what it has cost since it was enabled.
+                } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_STATS)) {
+                    if (sender.hasPermission(PERMISSION_STATS)) {
+                        if (arguments.length == 1) {
+                            sender.sendMessage(stringStatistics());
+                            return true;
+                        } else {
+                            sender.sendMessage(ChatColor.RED + "/stacksize stats");
+                            return true;
+                        }
+                    } else {
+                        sender.sendMessage(stringNoPermission(PERMISSION_STATS));
+                        return true;
+                    }
                 } else {
                     sender.sendMessage(stringSubCommands());
                     return true;
@@ -396,12 +1571,222 @@ public class Stacksize extends JavaPlugin implements Listener {
         }
     }
 
+    /**
+     * Reset materials and globs of materials in one batch. Every argument is validated before anything is
+     * changed. The materials and any entry written exactly as a glob are removed from stackSizes, the
+     * configuration is saved once, and the stack sizes are applied in one pass.
+     *
+     * @param sender The command sender.
+     * @param targets Material names and globs.
+     * @return True.
+     */
+    private boolean commandResetBatch(CommandSender sender, String[] targets) {
+        StackSizeTable materials = new StackSizeTable();
+        List<String> errors = new ArrayList<>();
+        for (String target : targets) {
+            if (StackSizeRules.isGlob(target)) {
+                List<Material> matched = StackSizeRules.glob(target);
+                if (matched.isEmpty()) {
+                    errors.add(String.format("%s matches no items.", target));
+                }
+                for (Material material : matched) {
+                    materials.put(material, 0);
+                }
+            } else {
+                Material material = this.materialLookup(target);
+                if (material == null) {
+                    errors.add(String.format("%s is not a valid material.", target));
+                } else if (!material.isItem()) {
+                    errors.add(String.format("%s is not an item.", target));
+                } else {
+                    materials.put(material, 0);
+                }
+            }
+        }
+        if (!errors.isEmpty()) {
+            sender.sendMessage(stringInvalidEntries(errors));
+            return true;
+        }
+        for (int i = materials.next(0); i >= 0; i = materials.next(i + 1)) {
+            this.configurationRemoveMaterial(StackSizeTable.material(i));
+        }
+        ConfigurationSection stackSizes = this.getConfig().getConfigurationSection("stackSizes");
+        if (stackSizes != null) {
+            for (String key : stackSizes.getKeys(false)) {
+                for (String target : targets) {
+                    if (StackSizeRules.isGlob(target) && key.equalsIgnoreCase(target)) {
+                        stackSizes.set(key, null);
+                    }
+                }
+            }
+        }
+        this.saveConfig();
+        StackSizeChanges changes = this.reloadStackSizes(this.isLoggingStackSizeChanges());
+        // Materials may still be configured by rules that were not reset.
+        int remaining = 0;
+        StackSizeRules rules = this.settings.getRules();
+        for (int i = materials.next(0); i >= 0; i = materials.next(i + 1)) {
+            if (rules.getSource(StackSizeTable.material(i)) != null) {
+                remaining++;
+            }
+        }
+        sender.sendMessage(stringResetStackSizes(materials.size(), changes, remaining));
+        return true;
+    }
+
+    /**
+     * Read, parse and validate a table file off the main thread, then apply it as one batch on the main thread.
+     *
+     * @param sender The command sender.
+     * @param fileName The file name, relative to the plugin folder.
+     * @return True.
+     */
+    private boolean commandImport(CommandSender sender, String fileName) {
+        Path file = this.tableFile(fileName);
+        if (file == null) {
+            sender.sendMessage(stringInvalidTableFile(fileName));
+            return true;
+        }
+        this.getServer().getScheduler().runTaskAsynchronously(this, () -> {
+            List<String> errors = new ArrayList<>();
+            StackSizeTable stackSizes;
+            try {
+                stackSizes = this.validateStackSizes(StackSizeTableFile.read(fileName, Files.readAllBytes(file)), errors);
+            } catch (IOException | InvalidConfigurationException e) {
+                this.getServer().getScheduler().runTask(this, () -> sender.sendMessage(stringUnreadableTableFile(fileName, e)));
+                return;
+            }
+            this.getServer().getScheduler().runTask(this, () -> {
+                if (!errors.isEmpty()) {
+                    sender.sendMessage(stringInvalidEntries(errors));
+                    return;
+                }
+                StackSizeChanges changes = this.modifyStackSizes(stackSizes);
+                sender.sendMessage(stringModifiedStackSizes(stackSizes.size(), changes));
+            });
+        });
+        return true;
+    }
+
+    /**
+     * Write the currently modified stack sizes to a table file off the main thread.
+     *
+     * @param sender The command sender.
+     * @param fileName The file name, relative to the plugin folder.
+     * @return True.
+     */
+    private boolean commandExport(CommandSender sender, String fileName) {
+        Path file = this.tableFile(fileName);
+        if (file == null || file.equals(this.path.toAbsolutePath().normalize().resolve("config.yml"))) {
+            sender.sendMessage(stringInvalidTableFile(fileName));
+            return true;
+        }
+        StackSizeTable applied = this.stackSizeSnapshot.getApplied();
+        this.getServer().getScheduler().runTaskAsynchronously(this, () -> {
+            try {
+                Files.write(file, StackSizeTableFile.write(fileName, applied));
+                this.getServer().getScheduler().runTask(this, () -> sender.sendMessage(stringExported(applied.size(), fileName)));
+            } catch (IOException e) {
+                this.getServer().getScheduler().runTask(this, () -> sender.sendMessage(stringUnreadableTableFile(fileName, e)));
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @param fileName A file name relative to the plugin folder.
+     * @return The file, or null if it is outside the plugin folder or has an unsupported extension.
+     */
+    private Path tableFile(String fileName) {
+        if (!StackSizeTableFile.isSupported(fileName)) {
+            return null;
+        }
+        Path folder = this.path.toAbsolutePath().normalize();
+        Path file = folder.resolve(fileName).normalize();
+        return file.startsWith(folder) ? file : null;
+    }
+
+    /**
+     * Validate material and stack size entries. Does not modify the plugin, so it may be called from any thread.
+     *
+     * @param entries The entries.
+     * @param errors A description of every invalid entry is added to this list.
+     * @return The stack sizes of the valid entries.
+     */
+    private StackSizeTable validateStackSizes(List<StackSizeTableFile.Entry> entries, List<String> errors) {
+        StackSizeTable stackSizes = new StackSizeTable();
+        for (StackSizeTableFile.Entry entry : entries) {
+            Material material = this.materialLookup(entry.getMaterial());
+            if (material == null) {
+                errors.add(String.format("%s: %s is not a valid material.", entry.getLocation(), entry.getMaterial()));
+                continue;
+            }
+            if (!material.isItem()) {
+                errors.add(String.format("%s: %s is not an item.", entry.getLocation(), entry.getMaterial()));
+                continue;
+            }
+            try {
+                stackSizes.put(material, Integer.parseInt(entry.getSize()));
+            } catch (NumberFormatException e) {
+                errors.add(String.format("%s: Invalid integer: %s.", entry.getLocation(), entry.getSize()));
+            }
+        }
+        return stackSizes;
+    }
+
+    /**
+     * Write a batch of stack sizes to the configuration, save the configuration once and apply the stack sizes
+     * in one pass.
+     *
+     * @param stackSizes The stack sizes.
+     * @return The materials that were changed.
+     */
+    private StackSizeChanges modifyStackSizes(StackSizeTable stackSizes) {
+        for (int i = stackSizes.next(0); i >= 0; i = stackSizes.next(i + 1)) {
+            this.configurationWriteMaterial(StackSizeTable.material(i), stackSizes.get(i, 0));
+        }
+        this.saveConfig();
+        return this.reloadStackSizes(this.isLoggingStackSizeChanges());
+    }
+
+    /**
+     * Find the materials of an item or block tag.
+     *
+     * @param name The tag name, with or without namespace.
+     * @return The tagged materials, or null if there is no such tag.
+     */
+    private Set<Material> tagLookup(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        if (key.indexOf(':') < 0) {
+            key = NamespacedKey.MINECRAFT + ":" + key;
+        }
+        return this.tags.get(key);
+    }
+
+    /**
+     * Find a material by name, ignoring case. Accepts namespaced and legacy names.
+     *
+     * @param name The material name.
+     * @return The material, or null if no material has the name.
+     */
+    private Material materialLookup(String name) {
+        MaterialIndex index = this.materialIndex;
+        return index != null ? index.lookup(name) : Material.matchMaterial(name);
+    }
+
     public boolean isLoggingConfigurationModification() {
-        return this.getConfig().getStringList("log").contains(LOG_CONFIGURATION_MODIFICATION);
+        return this.settings.isLoggingConfigurationModification();
     }
 
     public boolean isLoggingStackSizeChanges() {
-        return this.getConfig().getStringList("log").contains(LOG_STACKSIZE_MODIFICATION);
+        return this.settings.isLoggingStackSizeChanges();
+    }
+
+    /**
+     * @return The settings of the loaded configuration, safe to use from any thread.
+     */
+    StacksizeSettings getSettings() {
+        return this.settings;
     }
 
     @Override
@@ -415,20 +1800,35 @@ public class Stacksize extends JavaPlugin implements Listener {
                 subCommands.add(SUBCOMMAND_INSPECT);
                 subCommands.add(SUBCOMMAND_MODIFY);
                 subCommands.add(SUBCOMMAND_RESET);
+                subCommands.add(SUBCOMMAND_PROFILE);
+                subCommands.add(SUBCOMMAND_IMPORT);
+                subCommands.add(SUBCOMMAND_EXPORT);
+                subCommands.add(SUBCOMMAND_HISTORY);
+                subCommands.add(SUBCOMMAND_ROLLBACK);
+                subCommands.add(SUBCOMMAND_STATS);
                 String subCommand = arguments[0];
                 return subCommands.stream().filter(x -> x.startsWith(subCommand.toLowerCase())).collect(Collectors.toList());
             } else if (arguments.length == 2) {
                 String subCommand = arguments[0];
                 if (subCommand.equalsIgnoreCase(SUBCOMMAND_VIEW) || subCommand.equalsIgnoreCase(SUBCOMMAND_MODIFY) || subCommand.equalsIgnoreCase(SUBCOMMAND_RESET)) {
-                    String mMaterial = arguments[1];
-                    return Arrays.stream(Material.values()).filter(x ->
-                            x.name().startsWith(mMaterial.toUpperCase()) && x.isItem()
-                    ).map(
-                            Material::name).collect(Collectors.toList()
-                    );
+                    return this.materialIndex.complete(arguments[1]);
+                } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_IMPORT) || subCommand.equalsIgnoreCase(SUBCOMMAND_EXPORT)) {
+                    return this.tableFileNames(arguments[1]);
+                } else if (subCommand.equalsIgnoreCase(SUBCOMMAND_PROFILE)) {
+                    String prefix = arguments[1];
+                    return this.settings.getProfiles().getNames().stream().filter(x -> x.startsWith(prefix)).collect(Collectors.toList());
                 } else {
                     return new ArrayList<>();
                 }
+            } else if (arguments[0].equalsIgnoreCase(SUBCOMMAND_MODIFY) && arguments[1].contains("=")) {
+                // Complete the material of the last material=size pair.
+                String argument = arguments[arguments.length - 1];
+                if (argument.contains("=")) {
+                    return new ArrayList<>();
+                }
+                return this.materialIndex.complete(argument).stream().map(x -> x + "=").collect(Collectors.toList());
+            } else if (arguments[0].equalsIgnoreCase(SUBCOMMAND_RESET)) {
+                return this.materialIndex.complete(arguments[arguments.length - 1]);
             } else if (arguments.length == 3) {
                 String subCommand = arguments[0];
                 if (subCommand.equalsIgnoreCase(SUBCOMMAND_MODIFY)) {
@@ -448,13 +1848,43 @@ public class Stacksize extends JavaPlugin implements Listener {
         return new ArrayList<>();
     }
 
+    /**
+     * @param prefix A file name prefix.
+     * @return The names of table files in the plugin folder starting with the prefix, except the configuration.
+     */
+    private List<String> tableFileNames(String prefix) {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.path)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(prefix) && StackSizeTableFile.isSupported(name) && !name.equals("config.yml")) {
+                    names.add(name);
+                }
+            }
+        } catch (IOException e) {
+            return names;
+        }
+        Collections.sort(names);
+        return names;
+    }
+
     /**
      * This listener will update the player's inventory the tick after an inventory click. This is required
      * since the client predicts how the inventory will look afterwards. When the server has modified stack
-     * sizes the prediction might be wrong.
+     * sizes the prediction might be wrong. Clicks are collected in the resync queue, so that a player is
+     * updated at most once per tick.
+     *
+     * The prediction can only be wrong if the clicked item or the item on the cursor has a modified stack size.
+     * Clicks that only involve one slot and the cursor resend just that slot and the cursor.
      */
     @EventHandler(priority = EventPriority.MONITOR)
     public void onInventoryClick(InventoryClickEvent event) {
+        long start = System.nanoTime();
+        this.inventoryClick(event);
+        this.statistics.inventoryClicked(System.nanoTime() - start);
+    }
+
+    private void inventoryClick(InventoryClickEvent event) {
         if (event.isCancelled()) {
             return;
         }
@@ -463,11 +1893,104 @@ public class Stacksize extends JavaPlugin implements Listener {
             // The creative inventory works differently to the survival inventory and will not work
             // properly when updating the inventory the tick after a click.
             if (player.getGameMode() == GameMode.SURVIVAL || player.getGameMode() == GameMode.ADVENTURE) {
-                Bukkit.getScheduler().runTask(this, player::updateInventory);
+                InventoryView view = event.getView();
+                switch (event.getAction()) {
+                    case NOTHING:
+                        break;
+                    // These actions only change the clicked slot and the cursor.
+                    case PICKUP_ALL:
+                    case PICKUP_SOME:
+                    case PICKUP_HALF:
+                    case PICKUP_ONE:
+                    case PLACE_ALL:
+                    case PLACE_SOME:
+                    case PLACE_ONE:
+                    case SWAP_WITH_CURSOR:
+                    case DROP_ALL_SLOT:
+                    case DROP_ONE_SLOT:
+                        if (this.isModified(event.getCursor()) || this.isModified(event.getCurrentItem())) {
+                            this.resyncQueue.addSlot(player, view, event.getRawSlot());
+                        }
+                        break;
+                    // Cursor drops are clicks outside of the view, and only change the cursor.
+                    case DROP_ALL_CURSOR:
+                    case DROP_ONE_CURSOR:
+                        if (this.isModified(event.getCursor())) {
+                            this.resyncQueue.addCursor(player, view);
+                        }
+                        break;
+                    // Hotbar swaps change the clicked slot and the hotbar slot.
+                    case HOTBAR_SWAP:
+                    case HOTBAR_MOVE_AND_READD:
+                        int button = event.getHotbarButton();
+                        if (button < 0) {
+                            if (this.isModified(event.getCurrentItem())) {
+                                this.resyncQueue.add(player);
+                            }
+                        } else if (this.isModified(event.getCurrentItem()) || this.isModified(player.getInventory().getItem(button))) {
+                            this.resyncQueue.addSlot(player, view, event.getRawSlot());
+                            this.resyncQueue.addSlot(player, view, this.hotbarRawSlot(view, button));
+                        }
+                        break;
+                    // Shift clicks and double clicks may change any number of slots.
+                    default:
+                        if (this.isModified(event.getCursor()) || this.isModified(event.getCurrentItem())) {
+                            this.resyncQueue.add(player);
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Dragging an item over slots changes those slots and the cursor, so only they are resent. The prediction
+     * can only be wrong if the dragged item has a modified stack size.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onInventoryDrag(InventoryDragEvent event) {
+        if (event.isCancelled()) {
+            return;
+        }
+        if (event.getWhoClicked() instanceof Player) {
+            Player player = (Player) event.getWhoClicked();
+            if (player.getGameMode() == GameMode.SURVIVAL || player.getGameMode() == GameMode.ADVENTURE) {
+                if (this.isModified(event.getOldCursor())) {
+                    InventoryView view = event.getView();
+                    for (int rawSlot : event.getRawSlots()) {
+                        this.resyncQueue.addSlot(player, view, rawSlot);
+                    }
+                }
             }
         }
     }
 
+    /**
+     * @param item An item stack, or null.
+     * @return True if the item's material currently has a modified stack size, in the base stack sizes or in those
+     * of the world context.
+     */
+    private boolean isModified(ItemStack item) {
+        return item != null && (this.appliedStackSizes.contains(item.getType()) || this.overlays.isModified(this.context, item.getType().ordinal()));
+    }
+
+    /**
+     * Find the raw slot of a hotbar slot in an inventory view. The player's inventory is placed below the top
+     * inventory, with the 27 storage slots first and the 9 hotbar slots after them.
+     *
+     * @param view The inventory view.
+     * @param button The hotbar slot, from 0 to 8.
+     * @return The raw slot number.
+     */
+    private int hotbarRawSlot(InventoryView view, int button) {
+        // The player's own inventory view has the crafting result, crafting grid and armor slots on top.
+        if (view.getType() == InventoryType.CRAFTING) {
+            return 36 + button;
+        } else {
+            return view.getTopInventory().getSize() + 27 + button;
+        }
+    }
+
     private String stringModifiedStackSize(String materialName, int oldSize, int newSize) {
         return String.format(ChatColor.YELLOW + "Modified maximum stack size of " + ChatColor.RESET + "%s" + ChatColor.YELLOW + " from " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " to " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ".", materialName, oldSize, newSize);
     }
@@ -476,6 +1999,10 @@ public class Stacksize extends JavaPlugin implements Listener {
         return String.format(ChatColor.YELLOW + "Reset maximum stack size of " + ChatColor.RESET + "%s" + ChatColor.YELLOW + " from " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " to Vanilla size " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ".", materialName, oldSize, newSize);
     }
 
+    private String stringFailedStackSize(String materialName) {
+        return String.format(ChatColor.RED + "Failed to modify the maximum stack size of " + ChatColor.RESET + "%s" + ChatColor.RED + ". See the server log.", materialName);
+    }
+
     private String stringMaterialNotItem(String materialName) {
         return String.format(ChatColor.RESET + "%s" + ChatColor.RED + " is not an item."+ ChatColor.RED, materialName);
     }
@@ -490,12 +2017,161 @@ public class Stacksize extends JavaPlugin implements Listener {
 
     private String stringViewMaterial(Material material) {
         int max = material.getMaxStackSize();
-        int originalSize = vanillaStackSizes.containsKey(material) ? vanillaStackSizes.get(material) : material.getMaxStackSize();
-        return String.format(ChatColor.YELLOW + "Material: " + ChatColor.RESET + "%s" + ChatColor.YELLOW + "\n · Maximum Stack Size: " + ChatColor.RESET + "%2d" + ChatColor.YELLOW + "\n · Vanilla Maximum Stack Size: " + ChatColor.RESET + "%2d", material.name(), max, originalSize);
+        int originalSize = this.vanillaStackSizes.get(material, material.getMaxStackSize());
+        String view = String.format(ChatColor.YELLOW + "Material: " + ChatColor.RESET + "%s" + ChatColor.YELLOW + "\n · Maximum Stack Size: " + ChatColor.RESET + "%2d" + ChatColor.YELLOW + "\n · Vanilla Maximum Stack Size: " + ChatColor.RESET + "%2d", material.name(), max, originalSize);
+        String source = this.settings.getRules().getSource(material);
+        if (source != null) {
+            view += String.format(ChatColor.YELLOW + "\n · Configured by: " + ChatColor.RESET + "%s", source);
+        }
+        return view;
+    }
+
+    private String stringModifiedStackSizes(int count, StackSizeChanges changes) {
+        if (changes.getFailures().isEmpty()) {
+            return String.format(ChatColor.YELLOW + "Modified " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " entries. Changed the maximum stack size of " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " material(s).", count, changes.getChanges().size());
+        } else {
+            return String.format(ChatColor.RED + "Modified " + ChatColor.RESET + "%d" + ChatColor.RED + " entries, but failed to modify the maximum stack size of " + ChatColor.RESET + "%d" + ChatColor.RED + " material(s). See the server log.", count, changes.getFailures().size());
+        }
+    }
+
+    private String stringResetStackSizes(int count, StackSizeChanges changes, int remaining) {
+        String reset;
+        if (changes.getFailures().isEmpty()) {
+            reset = String.format(ChatColor.YELLOW + "Reset " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " material(s). Changed the maximum stack size of " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " material(s).", count, changes.getChanges().size());
+        } else {
+            reset = String.format(ChatColor.RED + "Reset " + ChatColor.RESET + "%d" + ChatColor.RED + " material(s), but failed to modify the maximum stack size of " + ChatColor.RESET + "%d" + ChatColor.RED + " material(s). See the server log.", count, changes.getFailures().size());
+        }
+        if (remaining > 0) {
+            reset += String.format(ChatColor.YELLOW + "\n · " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " material(s) are still configured by rules.", remaining);
+        }
+        return reset;
+    }
+
+    private String stringInvalidEntries(List<String> errors) {
+        StringBuilder builder = new StringBuilder(String.format(ChatColor.RED + "Found " + ChatColor.RESET + "%d" + ChatColor.RED + " invalid entries. Nothing was modified.", errors.size()));
+        for (String error : errors.subList(0, Math.min(errors.size(), LISTED_ERRORS))) {
+            builder.append(ChatColor.RED).append("\n · ").append(ChatColor.RESET).append(error);
+        }
+        return builder.toString();
+    }
+
+    private String stringInvalidTableFile(String fileName) {
+        return String.format(ChatColor.RESET + "%s" + ChatColor.RED + " is not a .yml, .yaml or .csv file in the plugin folder.", fileName);
+    }
+
+    private String stringUnreadableTableFile(String fileName, Exception e) {
+        return String.format(ChatColor.RED + "Unable to access " + ChatColor.RESET + "%s" + ChatColor.RED + ": %s", fileName, e.getMessage());
+    }
+
+    private String stringExported(int count, String fileName) {
+        return String.format(ChatColor.YELLOW + "Exported " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " modified stack size(s) to " + ChatColor.RESET + "%s" + ChatColor.YELLOW + ".", count, fileName);
+    }
+
+    private String stringProfiles() {
+        StacksizeSettings settings = this.settings;
+        return String.format(ChatColor.YELLOW + "Profile: " + ChatColor.RESET + "%s" + ChatColor.YELLOW + "\n · Profiles: " + ChatColor.RESET + "%s", settings.getProfile(), String.join(", ", settings.getProfiles().getNames()));
+    }
+
+    private String stringSwitchedProfile(String profile, StackSizeChanges changes) {
+        if (changes.getFailures().isEmpty()) {
+            return String.format(ChatColor.YELLOW + "Switched to profile " + ChatColor.RESET + "%s" + ChatColor.YELLOW + ". Changed the maximum stack size of " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " material(s).", profile, changes.getChanges().size());
+        } else {
+            return String.format(ChatColor.RED + "Switched to profile " + ChatColor.RESET + "%s" + ChatColor.RED + ", but failed to modify the maximum stack size of " + ChatColor.RESET + "%d" + ChatColor.RED + " material(s). See the server log.", profile, changes.getFailures().size());
+        }
+    }
+
+    private String stringInvalidProfile(String profile) {
+        return String.format(ChatColor.RESET + "%s" + ChatColor.RED + " is not a profile.", profile);
+    }
+
+    private String stringHistory() {
+        List<ApplyHistory.Entry> entries = this.history.getEntries();
+        if (entries.isEmpty()) {
+            return ChatColor.YELLOW + "No stack sizes have been applied yet.";
+        }
+        StringBuilder message = new StringBuilder(ChatColor.YELLOW + "Applied stack sizes, newest first:");
+        for (int i = 0; i < entries.size(); i++) {
+            ApplyHistory.Entry entry = entries.get(i);
+            message.append(String.format("\n · " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ": #%d at %s, " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " material(s):", i + 1, entry.getId(), HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(entry.getTime())), entry.size()));
+            for (int j = 0; j < Math.min(entry.size(), LISTED_HISTORY_MATERIALS); j++) {
+                message.append(String.format(" " + ChatColor.RESET + "%s" + ChatColor.YELLOW + " %d → %d", entry.getMaterial(j).name(), entry.getOldSize(j), entry.getNewSize(j)));
+            }
+            if (entry.size() > LISTED_HISTORY_MATERIALS) {
+                message.append(String.format(" and %d more", entry.size() - LISTED_HISTORY_MATERIALS));
+            }
+        }
+        return message.toString();
+    }
+
+    private String stringInvalidRollback(int steps) {
+        return String.format(ChatColor.RED + "Cannot roll back " + ChatColor.RESET + "%d" + ChatColor.RED + " step(s). The history holds " + ChatColor.RESET + "%d" + ChatColor.RED + ".", steps, this.history.size());
+    }
+
+    private String stringRolledBack(int steps, StackSizeChanges changes) {
+        if (changes.getFailures().isEmpty()) {
+            return String.format(ChatColor.YELLOW + "Rolled back " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " step(s). Changed the maximum stack size of " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " material(s). The configuration is unchanged, and is applied again when it is reloaded.", steps, changes.getChanges().size());
+        } else {
+            return String.format(ChatColor.RED + "Rolled back " + ChatColor.RESET + "%d" + ChatColor.RED + " step(s), but failed to modify the maximum stack size of " + ChatColor.RESET + "%d" + ChatColor.RED + " material(s). See the server log.", steps, changes.getFailures().size());
+        }
+    }
+
+    private String stringStatistics() {
+        StacksizeStatistics statistics = this.statistics;
+        return String.format(ChatColor.YELLOW + "Statistics since the plugin was enabled:"
+                + "\n · Reloads: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", " + ChatColor.RESET + "%.3f ms" + ChatColor.YELLOW + " in total, " + ChatColor.RESET + "%.3f ms" + ChatColor.YELLOW + " last"
+                + "\n · Materials changed: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " in total, " + ChatColor.RESET + "%d" + ChatColor.YELLOW + " last"
+                + "\n · Reflection failures: " + ChatColor.RESET + "%d"
+                + ChatColor.YELLOW + "\n · Watcher events: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", reloads: " + ChatColor.RESET + "%d"
+                + ChatColor.YELLOW + "\n · Inventory resyncs: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", " + ChatColor.RESET + "%.1f/s"
+                + ChatColor.YELLOW + "\n · Inventory clicks: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", " + ChatColor.RESET + "%.3f ms" + ChatColor.YELLOW + " in total"
+                + "\n · Commands: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", " + ChatColor.RESET + "%.3f ms" + ChatColor.YELLOW + " in total"
+                + "\n · Normalized stacks: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", dropped items: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + "%s%s%s",
+                statistics.getReloadCount(), statistics.getReloadTimeNanos() / 1e6, statistics.getLastReloadTimeNanos() / 1e6,
+                statistics.getMaterialsTouched(), statistics.getLastMaterialsTouched(),
+                statistics.getReflectionFailures(),
+                statistics.getWatcherEvents(), statistics.getWatcherReloads(),
+                statistics.getResyncsScheduled(), statistics.getResyncsPerSecond(),
+                statistics.getInventoryClickCount(), statistics.getInventoryClickTimeNanos() / 1e6,
+                statistics.getCommandCount(), statistics.getCommandTimeNanos() / 1e6,
+                statistics.getNormalizedStacks(), statistics.getNormalizerDroppedItems(), this.stringNormalizerProgress(), this.stringContext(), this.stringSync());
+    }
+
+    private String stringContext() {
+        if (this.overlays.isEmpty()) {
+            return "";
+        }
+        StacksizeStatistics statistics = this.statistics;
+        return String.format("\n · World context: " + ChatColor.RESET + "%s" + ChatColor.YELLOW + ", switches: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", materials: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", last tick: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", most in a tick: " + ChatColor.RESET + "%d",
+                this.context != null ? this.context : "base", statistics.getContextSwaps(), statistics.getContextSwapMaterials(), statistics.getLastTickContextSwaps(), statistics.getMaxTickContextSwaps());
+    }
+
+    private String stringSync() {
+        StackSizeSync sync = this.sync;
+        if (sync == null) {
+            return "";
+        }
+        if (!sync.isAuthority()) {
+            return String.format("\n · Sync: following at version " + ChatColor.RESET + "%d", sync.getVersion());
+        }
+        long behind = sync.getAcknowledgements().values().stream().filter(version -> version < sync.getVersion()).count();
+        return String.format("\n · Sync: authority at version " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", followers: " + ChatColor.RESET + "%d" + ChatColor.YELLOW + ", behind: " + ChatColor.RESET + "%d",
+                sync.getVersion(), sync.getAcknowledgements().size(), behind);
+    }
+
+    private String stringFollowing() {
+        return ChatColor.RED + "This server follows the stack sizes of the sync authority. Change them there.";
+    }
+
+    private String stringNormalizerProgress() {
+        StackNormalizer normalizer = this.normalizer;
+        if (normalizer == null || !normalizer.isRunning()) {
+            return "";
+        }
+        return String.format(", in progress: " + ChatColor.RESET + "%d/%d" + ChatColor.YELLOW + " players and chunks", normalizer.getDone(), normalizer.getTotal());
     }
 
     private String stringSubCommands() {
-        return ChatColor.RED + "/stacksize <view | inspect | modify | reset>";
+        return ChatColor.RED + "/stacksize <view | inspect | modify | reset | profile | import | export | history | rollback | stats>";
     }
 
     private String stringNoPermission(String permission) {
@@ -0,0 +1,48 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.util.Map;
+
+/**
+ * Maximum stack size lookups for other plugins, registered with the server's services manager while the plugin
+ * is enabled. Unlike {@link Material#getMaxStackSize()}, which the plugin modifies in place, lookups are served
+ * from an immutable snapshot that is replaced as a whole after every change. Every method may be called from any
+ * thread, and none of them take locks.
+ *
+ * Each lookup reads the latest snapshot. Consumers that need several lookups to agree can compare
+ * {@link #getVersion()} before and after, or listen for {@link StackSizesChangedEvent}.
+ */
+public interface StacksizeService {
+
+    /**
+     * @return The number of maximum stack size modifications made by the plugin. Increases every time the
+     * stack sizes change.
+     */
+    long getVersion();
+
+    /**
+     * @param material A material.
+     * @return The maximum stack size currently in effect.
+     */
+    int getMaxStackSize(Material material);
+
+    /**
+     * @param material A material.
+     * @return The maximum stack size of the material before the plugin modified it.
+     */
+    int getVanillaMaxStackSize(Material material);
+
+    /**
+     * @param material A material.
+     * @return True if the maximum stack size in effect differs from the Vanilla size.
+     */
+    boolean isModified(Material material);
+
+    /**
+     * @return The maximum stack sizes in effect of every modified material, from a single snapshot. The map is
+     * a copy and cannot be modified.
+     */
+    Map<Material, Integer> getModifiedStackSizes();
+
+}
@@ -0,0 +1,175 @@
+package no.hyp.stacksize;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The plugin's settings, compiled once from a loaded configuration. The settings are immutable. The plugin
+ * publishes them through a single volatile reference and replaces them as a whole on reload, so that hot paths
+ * read plain fields, and every thread sees the flags, profiles and applied profile of the same configuration.
+ */
+final class StacksizeSettings {
+
+    static final String LOG_STACKSIZE_MODIFICATION = "STACK_SIZE_MODIFIED";
+
+    static final String LOG_CONFIGURATION_MODIFICATION = "CONFIGURATION_MODIFIED";
+
+    /**
+     * The default debounce window of the configuration watcher in milliseconds.
+     */
+    static final long DEFAULT_WATCHER_DEBOUNCE = 250;
+
+    /**
+     * The default time the normalizer may use per tick in microseconds.
+     */
+    static final long DEFAULT_NORMALIZER_BUDGET = 500;
+
+    private final boolean required;
+
+    private final boolean loggingStackSizeChanges;
+
+    private final boolean loggingConfigurationModification;
+
+    private final long watcherDebounce;
+
+    private final boolean normalizing;
+
+    private final long normalizerBudget;
+
+    private final boolean journaling;
+
+    private final StackSizeProfiles profiles;
+
+    private final String profile;
+
+    private final long version;
+
+    private StacksizeSettings(boolean required, boolean loggingStackSizeChanges, boolean loggingConfigurationModification, long watcherDebounce, boolean normalizing, long normalizerBudget, boolean journaling, StackSizeProfiles profiles, String profile, long version) {
+        this.required = required;
+        this.loggingStackSizeChanges = loggingStackSizeChanges;
+        this.loggingConfigurationModification = loggingConfigurationModification;
+        this.watcherDebounce = watcherDebounce;
+        this.normalizing = normalizing;
+        this.normalizerBudget = normalizerBudget;
+        this.journaling = journaling;
+        this.profiles = profiles;
+        this.profile = profile;
+        this.version = version;
+    }
+
+    /**
+     * @return Settings with nothing configured, used until a configuration is loaded.
+     */
+    static StacksizeSettings empty() {
+        StackSizeProfiles profiles = new StackSizeProfiles(StackSizeRules.empty(), new HashMap<>(), new ArrayList<>());
+        return new StacksizeSettings(false, false, false, DEFAULT_WATCHER_DEBOUNCE, false, DEFAULT_NORMALIZER_BUDGET, false, profiles, StackSizeProfiles.DEFAULT, 0);
+    }
+
+    /**
+     * Compile settings from a configuration. Does not modify anything, so it may be called from any thread.
+     *
+     * @param configuration The configuration.
+     * @param profiles The profiles compiled from the configuration.
+     * @param profile The name of the profile to apply. Must exist.
+     * @param version The version of the new settings.
+     * @return The settings.
+     */
+    static StacksizeSettings compile(ConfigurationSection configuration, StackSizeProfiles profiles, String profile, long version) {
+        List<String> log = configuration.getStringList("log");
+        return new StacksizeSettings(
+                configuration.getBoolean("required"),
+                log.contains(LOG_STACKSIZE_MODIFICATION),
+                log.contains(LOG_CONFIGURATION_MODIFICATION),
+                Math.max(0, configuration.getLong("watcherDebounce", DEFAULT_WATCHER_DEBOUNCE)),
+                configuration.getBoolean("normalize"),
+                Math.max(0, configuration.getLong("normalizerBudget", DEFAULT_NORMALIZER_BUDGET)),
+                configuration.getBoolean("changeJournal"),
+                profiles,
+                profile,
+                version);
+    }
+
+    /**
+     * @param profile The name of the profile to apply. Must exist.
+     * @return A copy of the settings with another applied profile, and the next version.
+     */
+    StacksizeSettings withProfile(String profile) {
+        return new StacksizeSettings(this.required, this.loggingStackSizeChanges, this.loggingConfigurationModification, this.watcherDebounce, this.normalizing, this.normalizerBudget, this.journaling, this.profiles, profile, this.version + 1);
+    }
+
+    /**
+     * @return True if the server must shut down when the plugin fails.
+     */
+    boolean isRequired() {
+        return this.required;
+    }
+
+    boolean isLoggingStackSizeChanges() {
+        return this.loggingStackSizeChanges;
+    }
+
+    boolean isLoggingConfigurationModification() {
+        return this.loggingConfigurationModification;
+    }
+
+    long getWatcherDebounce() {
+        return this.watcherDebounce;
+    }
+
+    /**
+     * @return True if oversized stacks are split after a maximum stack size is lowered.
+     */
+    boolean isNormalizing() {
+        return this.normalizing;
+    }
+
+    /**
+     * @return The time the normalizer may use per tick in microseconds.
+     */
+    long getNormalizerBudget() {
+        return this.normalizerBudget;
+    }
+
+    /**
+     * @return True if every batch of applied stack sizes is appended to the change journal.
+     */
+    boolean isJournaling() {
+        return this.journaling;
+    }
+
+    StackSizeProfiles getProfiles() {
+        return this.profiles;
+    }
+
+    /**
+     * @return The name of the applied profile.
+     */
+    String getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * @return The compiled table of the applied profile. Must not be modified.
+     */
+    StackSizeTable getTable() {
+        return this.profiles.get(this.profile);
+    }
+
+    /**
+     * @return The compiled rules of the applied profile.
+     */
+    StackSizeRules getRules() {
+        return this.profiles.getRules(this.profile);
+    }
+
+    /**
+     * @return The number of times settings were replaced before these.
+     */
+    long getVersion() {
+        return this.version;
+    }
+
+}
@@ -0,0 +1,68 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Serves {@link StacksizeService} lookups from the plugin's published {@link StackSizeSnapshot}. The Vanilla
+ * stack size of every material is captured once, when the service is created on the main thread, so that a
+ * lookup never reads a {@link Material} the main thread may be modifying.
+ */
+final class StacksizeSnapshotService implements StacksizeService {
+
+    private final Stacksize plugin;
+
+    /**
+     * The Vanilla stack size of every material, by ordinal.
+     */
+    private final int[] vanilla;
+
+    /**
+     * Capture the Vanilla stack sizes. Must be called on the main thread.
+     *
+     * @param plugin The plugin.
+     * @param vanillaStackSizes The original stack sizes of every material modified so far.
+     */
+    StacksizeSnapshotService(Stacksize plugin, StackSizeTable vanillaStackSizes) {
+        this.plugin = plugin;
+        this.vanilla = new int[StackSizeTable.capacity()];
+        for (int i = 0; i < this.vanilla.length; i++) {
+            this.vanilla[i] = vanillaStackSizes.get(i, StackSizeTable.material(i).getMaxStackSize());
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return this.plugin.getStackSizeSnapshot().getVersion();
+    }
+
+    @Override
+    public int getMaxStackSize(Material material) {
+        int ordinal = material.ordinal();
+        return this.plugin.getStackSizeSnapshot().getApplied().get(ordinal, this.vanilla[ordinal]);
+    }
+
+    @Override
+    public int getVanillaMaxStackSize(Material material) {
+        return this.vanilla[material.ordinal()];
+    }
+
+    @Override
+    public boolean isModified(Material material) {
+        return this.plugin.getStackSizeSnapshot().getApplied().contains(material);
+    }
+
+    @Override
+    public Map<Material, Integer> getModifiedStackSizes() {
+        StackSizeTable applied = this.plugin.getStackSizeSnapshot().getApplied();
+        Map<Material, Integer> stackSizes = new EnumMap<>(Material.class);
+        for (int i = applied.next(0); i >= 0; i = applied.next(i + 1)) {
+            stackSizes.put(StackSizeTable.material(i), applied.get(i, 0));
+        }
+        return Collections.unmodifiableMap(stackSizes);
+    }
+
+}
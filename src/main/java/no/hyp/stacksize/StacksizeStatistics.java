@@ -0,0 +1,258 @@
+package no.hyp.stacksize;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for what the plugin does and what it costs. Recording is lock-free and does not allocate, so that
+ * it can stay on in production: counters written from several threads are {@link LongAdder}s, and the values
+ * that only the main thread writes are plain volatile fields.
+ */
+final class StacksizeStatistics implements StacksizeStatisticsMXBean {
+
+    /**
+     * The name the statistics are registered under with the platform MBean server.
+     */
+    static final String OBJECT_NAME = "no.hyp.stacksize:type=Statistics";
+
+    private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    private final LongAdder reloads = new LongAdder();
+
+    private final LongAdder reloadNanos = new LongAdder();
+
+    private volatile long lastReloadNanos = 0;
+
+    private final LongAdder materialsTouched = new LongAdder();
+
+    private volatile long lastMaterialsTouched = 0;
+
+    private final LongAdder reflectionFailures = new LongAdder();
+
+    private final LongAdder watcherEvents = new LongAdder();
+
+    private final LongAdder watcherReloads = new LongAdder();
+
+    private final LongAdder resyncs = new LongAdder();
+
+    /**
+     * The start of the current resync rate window, and the resync count at that time. Only written by the
+     * main thread.
+     */
+    private long rateWindowStart = System.nanoTime();
+
+    private long rateWindowResyncs = 0;
+
+    private volatile double resyncsPerSecond = 0;
+
+    private final LongAdder normalizedStacks = new LongAdder();
+
+    private final LongAdder normalizerDroppedItems = new LongAdder();
+
+    private final LongAdder inventoryClicks = new LongAdder();
+
+    private final LongAdder inventoryClickNanos = new LongAdder();
+
+    private final LongAdder commands = new LongAdder();
+
+    private final LongAdder commandNanos = new LongAdder();
+
+    private final LongAdder contextSwaps = new LongAdder();
+
+    private final LongAdder contextSwapMaterials = new LongAdder();
+
+    /**
+     * The context swaps in the current tick. Only accessed by the main thread.
+     */
+    private long tickContextSwaps = 0;
+
+    private volatile long lastTickContextSwaps = 0;
+
+    private volatile long maxTickContextSwaps = 0;
+
+    /**
+     * Record that configured stack sizes were applied.
+     *
+     * @param nanos The time the reload took.
+     * @param materials The number of materials whose stack size changed.
+     */
+    void reloaded(long nanos, int materials) {
+        this.reloads.increment();
+        this.reloadNanos.add(nanos);
+        this.lastReloadNanos = nanos;
+        this.materialsTouched.add(materials);
+        this.lastMaterialsTouched = materials;
+    }
+
+    void reflectionFailed() {
+        this.reflectionFailures.increment();
+    }
+
+    void watcherEvent() {
+        this.watcherEvents.increment();
+    }
+
+    void watcherReloaded() {
+        this.watcherReloads.increment();
+    }
+
+    void resyncScheduled() {
+        this.resyncs.increment();
+    }
+
+    /**
+     * Update the resync rate once its window has passed. Called by the main thread every tick.
+     *
+     * @param now The current {@link System#nanoTime()}.
+     */
+    void sampleResyncRate(long now) {
+        long elapsed = now - this.rateWindowStart;
+        if (elapsed >= RATE_WINDOW) {
+            long resyncs = this.resyncs.sum();
+            this.resyncsPerSecond = (resyncs - this.rateWindowResyncs) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+            this.rateWindowStart = now;
+            this.rateWindowResyncs = resyncs;
+        }
+    }
+
+    void stackNormalized() {
+        this.normalizedStacks.increment();
+    }
+
+    void itemsDropped(int items) {
+        this.normalizerDroppedItems.add(items);
+    }
+
+    void inventoryClicked(long nanos) {
+        this.inventoryClicks.increment();
+        this.inventoryClickNanos.add(nanos);
+    }
+
+    void commandExecuted(long nanos) {
+        this.commands.increment();
+        this.commandNanos.add(nanos);
+    }
+
+    /**
+     * Record a switch between world stack sizes.
+     *
+     * @param materials The number of materials whose stack size changed.
+     */
+    void contextSwapped(int materials) {
+        this.contextSwaps.increment();
+        this.contextSwapMaterials.add(materials);
+        this.tickContextSwaps++;
+    }
+
+    /**
+     * End the tick of the context swap count. Called by the main thread every tick.
+     */
+    void contextTicked() {
+        this.lastTickContextSwaps = this.tickContextSwaps;
+        if (this.tickContextSwaps > this.maxTickContextSwaps) {
+            this.maxTickContextSwaps = this.tickContextSwaps;
+        }
+        this.tickContextSwaps = 0;
+    }
+
+    @Override
+    public long getReloadCount() {
+        return this.reloads.sum();
+    }
+
+    @Override
+    public long getReloadTimeNanos() {
+        return this.reloadNanos.sum();
+    }
+
+    @Override
+    public long getLastReloadTimeNanos() {
+        return this.lastReloadNanos;
+    }
+
+    @Override
+    public long getMaterialsTouched() {
+        return this.materialsTouched.sum();
+    }
+
+    @Override
+    public long getLastMaterialsTouched() {
+        return this.lastMaterialsTouched;
+    }
+
+    @Override
+    public long getReflectionFailures() {
+        return this.reflectionFailures.sum();
+    }
+
+    @Override
+    public long getWatcherEvents() {
+        return this.watcherEvents.sum();
+    }
+
+    @Override
+    public long getWatcherReloads() {
+        return this.watcherReloads.sum();
+    }
+
+    @Override
+    public long getResyncsScheduled() {
+        return this.resyncs.sum();
+    }
+
+    @Override
+    public double getResyncsPerSecond() {
+        return this.resyncsPerSecond;
+    }
+
+    @Override
+    public long getNormalizedStacks() {
+        return this.normalizedStacks.sum();
+    }
+
+    @Override
+    public long getNormalizerDroppedItems() {
+        return this.normalizerDroppedItems.sum();
+    }
+
+    @Override
+    public long getInventoryClickCount() {
+        return this.inventoryClicks.sum();
+    }
+
+    @Override
+    public long getInventoryClickTimeNanos() {
+        return this.inventoryClickNanos.sum();
+    }
+
+    @Override
+    public long getCommandCount() {
+        return this.commands.sum();
+    }
+
+    @Override
+    public long getCommandTimeNanos() {
+        return this.commandNanos.sum();
+    }
+
+    @Override
+    public long getContextSwaps() {
+        return this.contextSwaps.sum();
+    }
+
+    @Override
+    public long getContextSwapMaterials() {
+        return this.contextSwapMaterials.sum();
+    }
+
+    @Override
+    public long getLastTickContextSwaps() {
+        return this.lastTickContextSwaps;
+    }
+
+    @Override
+    public long getMaxTickContextSwaps() {
+        return this.maxTickContextSwaps;
+    }
+
+}
@@ -0,0 +1,89 @@
+package no.hyp.stacksize;
+
+/**
+ * The plugin's runtime statistics, as exposed over JMX under {@link StacksizeStatistics#OBJECT_NAME}. JMX
+ * requires the interface to be public. Every value is a running total since the plugin was enabled, unless
+ * stated otherwise. Times are in nanoseconds.
+ */
+public interface StacksizeStatisticsMXBean {
+
+    /**
+     * @return The number of times configured stack sizes were applied, by startup, commands or the watcher.
+     */
+    long getReloadCount();
+
+    long getReloadTimeNanos();
+
+    long getLastReloadTimeNanos();
+
+    /**
+     * @return The number of materials whose maximum stack size was changed by reloads.
+     */
+    long getMaterialsTouched();
+
+    long getLastMaterialsTouched();
+
+    /**
+     * @return The number of failed reflective accesses to the server internals.
+     */
+    long getReflectionFailures();
+
+    /**
+     * @return The number of file system events concerning the configuration file.
+     */
+    long getWatcherEvents();
+
+    /**
+     * @return The number of reloads caused by the configuration watcher.
+     */
+    long getWatcherReloads();
+
+    /**
+     * @return The number of players queued for an inventory resend.
+     */
+    long getResyncsScheduled();
+
+    /**
+     * @return The number of players queued for an inventory resend per second, over the last second or more.
+     */
+    double getResyncsPerSecond();
+
+    /**
+     * @return The number of oversized stacks split by the normalizer.
+     */
+    long getNormalizedStacks();
+
+    /**
+     * @return The number of items the normalizer dropped because they did not fit.
+     */
+    long getNormalizerDroppedItems();
+
+    long getInventoryClickCount();
+
+    /**
+     * @return The main thread time spent handling inventory clicks.
+     */
+    long getInventoryClickTimeNanos();
+
+    long getCommandCount();
+
+    /**
+     * @return The main thread time spent handling commands.
+     */
+    long getCommandTimeNanos();
+
+    /**
+     * @return The number of switches between world stack sizes, and the materials modified by them.
+     */
+    long getContextSwaps();
+
+    long getContextSwapMaterials();
+
+    /**
+     * @return The number of switches between world stack sizes in the last tick, and the most in any tick.
+     */
+    long getLastTickContextSwaps();
+
+    long getMaxTickContextSwaps();
+
+}
@@ -0,0 +1,176 @@
+package no.hyp.stacksize;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An append-only file of stack size diffs, one encoded diff per line, in version order. The authority appends to
+ * the journal, and readers fetch the diffs after the version they have. A reader remembers how far into the file
+ * it has read, so that polling an unchanged journal does not read it again. Lines that cannot be decoded, such as
+ * a line that is still being written, end the read, and are read again on the next fetch.
+ *
+ * So that neither the file nor the diffs held in memory grow without bound, the authority compacts the journal
+ * once it holds more than {@link #COMPACT_THRESHOLD} diffs. The diffs up to the oldest acknowledged version are
+ * replaced by a snapshot of the table at that version, and the file is atomically replaced. At most
+ * {@link #COMPACT_KEEP} diffs are kept after the snapshot, so a follower that has fallen further behind receives
+ * the snapshot instead. Readers notice that the file was replaced and read it from the start.
+ */
+final class SyncJournal {
+
+    /**
+     * The number of diffs that makes the authority compact the journal.
+     */
+    static final int COMPACT_THRESHOLD = 256;
+
+    /**
+     * The most diffs kept after the snapshot of a compaction.
+     */
+    static final int COMPACT_KEEP = 64;
+
+    private final Path file;
+
+    private final Logger logger;
+
+    /**
+     * The position after the last complete line that has been read, and the diffs read so far.
+     */
+    private long position = 0;
+
+    private final List<StackSizeDiff> diffs = new ArrayList<>();
+
+    /**
+     * The identity of the file that was read, if the file system has one, to notice that the file was replaced.
+     */
+    private Object fileKey = null;
+
+    SyncJournal(Path file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Append a diff and force it to disk.
+     *
+     * @param diff The diff.
+     * @throws IOException If the diff could not be written.
+     */
+    synchronized void append(StackSizeDiff diff) throws IOException {
+        Files.createDirectories(this.file.getParent());
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(StandardCharsets.UTF_8.encode(diff.encode() + "\n"));
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Compact the journal if it holds more than {@link #COMPACT_THRESHOLD} diffs.
+     *
+     * @param acknowledged The oldest version acknowledged by the followers, or the latest version if there are none.
+     * @throws IOException If the journal could not be read or replaced.
+     */
+    synchronized void compact(long acknowledged) throws IOException {
+        this.read();
+        if (this.diffs.size() <= COMPACT_THRESHOLD) {
+            return;
+        }
+        long latest = this.diffs.get(this.diffs.size() - 1).getVersion();
+        long version = Math.max(Math.min(acknowledged, latest), latest - COMPACT_KEEP);
+        // The snapshot cannot go back before the first diff, which may be the snapshot of an earlier compaction.
+        version = Math.max(version, this.diffs.get(0).getVersion());
+        StackSizeTable table = new StackSizeTable();
+        List<StackSizeDiff> compacted = new ArrayList<>();
+        for (StackSizeDiff diff : this.diffs) {
+            if (diff.getVersion() <= version) {
+                diff.applyTo(table);
+            } else {
+                compacted.add(diff);
+            }
+        }
+        compacted.add(0, StackSizeDiff.snapshot(version, table));
+        StringBuilder contents = new StringBuilder();
+        for (StackSizeDiff diff : compacted) {
+            contents.append(diff.encode()).append('\n');
+        }
+        byte[] bytes = contents.toString().getBytes(StandardCharsets.UTF_8);
+        Path temporaryFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        Files.write(temporaryFile, bytes);
+        try {
+            Files.move(temporaryFile, this.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, this.file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        this.diffs.clear();
+        this.diffs.addAll(compacted);
+        this.position = bytes.length;
+        this.fileKey = Files.readAttributes(this.file, BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * @param version A version.
+     * @return The diffs in the journal after the version, in order.
+     * @throws IOException If the journal could not be read.
+     */
+    synchronized List<StackSizeDiff> after(long version) throws IOException {
+        this.read();
+        List<StackSizeDiff> diffs = new ArrayList<>();
+        for (StackSizeDiff diff : this.diffs) {
+            if (diff.getVersion() > version) {
+                diffs.add(diff);
+            }
+        }
+        return diffs;
+    }
+
+    /**
+     * Read the lines appended since the last read. If the journal was truncated or replaced, it is read from the
+     * start.
+     */
+    private void read() throws IOException {
+        if (!Files.exists(this.file)) {
+            this.position = 0;
+            this.diffs.clear();
+            return;
+        }
+        Object fileKey = Files.readAttributes(this.file, BasicFileAttributes.class).fileKey();
+        try (RandomAccessFile input = new RandomAccessFile(this.file.toFile(), "r")) {
+            if (input.length() < this.position || (fileKey != null && !fileKey.equals(this.fileKey))) {
+                this.position = 0;
+                this.diffs.clear();
+            }
+            this.fileKey = fileKey;
+            long base = this.position;
+            byte[] bytes = new byte[(int) (input.length() - base)];
+            input.seek(base);
+            input.readFully(bytes);
+            int start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != '\n') {
+                    continue;
+                }
+                String line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                if (!line.trim().isEmpty()) {
+                    try {
+                        this.diffs.add(StackSizeDiff.decode(line));
+                    } catch (IllegalArgumentException e) {
+                        this.logger.warning(String.format("Invalid line in %s: %s", this.file, e.getMessage()));
+                        return;
+                    }
+                }
+                start = i + 1;
+                this.position = base + start;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package no.hyp.stacksize;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries stack size diffs from a sync authority to its followers, and acknowledgements back. Implementations are
+ * only called from the sync thread, so they need not be thread-safe towards the plugin, but the authority side of
+ * a transport may serve followers on threads of its own.
+ */
+interface SyncTransport {
+
+    /**
+     * Publish a diff. Called on the authority. The version must follow the last published version.
+     *
+     * @param diff The diff.
+     * @throws IOException If the diff could not be published.
+     */
+    void publish(StackSizeDiff diff) throws IOException;
+
+    /**
+     * Compact the published diffs if there are many of them, replacing the diffs up to a version with a snapshot.
+     * Called on the authority.
+     *
+     * @param acknowledged The oldest version acknowledged by the followers, or the latest version if there are none.
+     * @throws IOException If the diffs could not be compacted.
+     */
+    void compact(long acknowledged) throws IOException;
+
+    /**
+     * Fetch the diffs published after a version, in order. The first diff may be a snapshot.
+     *
+     * @param version The last version the caller has applied, or 0 for every diff.
+     * @return The diffs.
+     * @throws IOException If the diffs could not be fetched.
+     */
+    List<StackSizeDiff> fetch(long version) throws IOException;
+
+    /**
+     * Record that a follower has applied every diff up to a version.
+     *
+     * @param node The follower's node name.
+     * @param version The version.
+     * @throws IOException If the acknowledgement could not be sent.
+     */
+    void acknowledge(String node, long version) throws IOException;
+
+    /**
+     * @return The last version each follower has acknowledged. Called on the authority.
+     * @throws IOException If the acknowledgements could not be read.
+     */
+    Map<String, Long> acknowledgements() throws IOException;
+
+    /**
+     * Release the transport's resources.
+     */
+    void close();
+
+}
@@ -0,0 +1,214 @@
+package no.hyp.stacksize;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A sync transport over TCP. The authority keeps its diffs in a journal in its own directory, and serves them on a
+ * socket. Followers connect for every request. The protocol is line based, with one request per connection:
+ * <ul>
+ *     <li>{@code FETCH <version>} - The authority answers with the encoded diffs after the version, one per line,
+ *     followed by {@code END}.</li>
+ *     <li>{@code ACK <node> <version>} - The authority records the acknowledgement and answers {@code OK}.</li>
+ * </ul>
+ * The protocol is not authenticated, so the authority should only listen on a loopback or private address.
+ */
+final class TcpSyncTransport implements SyncTransport {
+
+    private static final int TIMEOUT = 5000;
+
+    private final InetSocketAddress address;
+
+    private final Logger logger;
+
+    /**
+     * The journal and the server socket of the authority. Null on followers.
+     */
+    private final SyncJournal journal;
+
+    private final ServerSocket server;
+
+    private final Map<String, Long> acknowledgements = new ConcurrentHashMap<>();
+
+    private TcpSyncTransport(InetSocketAddress address, Logger logger, SyncJournal journal, ServerSocket server) {
+        this.address = address;
+        this.logger = logger;
+        this.journal = journal;
+        this.server = server;
+    }
+
+    /**
+     * Start serving diffs.
+     *
+     * @param address The address to listen on.
+     * @param journal The file of the authority's journal.
+     * @param logger The logger.
+     * @return The authority's transport.
+     * @throws IOException If the server socket could not be bound.
+     */
+    static TcpSyncTransport authority(InetSocketAddress address, Path journal, Logger logger) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.bind(address);
+        TcpSyncTransport transport = new TcpSyncTransport(address, logger, new SyncJournal(journal, logger), server);
+        Thread thread = new Thread(transport::serve, "Stacksize sync server");
+        thread.setDaemon(true);
+        thread.start();
+        return transport;
+    }
+
+    /**
+     * @param address The address of the authority.
+     * @param logger The logger.
+     * @return A follower's transport.
+     */
+    static TcpSyncTransport follower(InetSocketAddress address, Logger logger) {
+        return new TcpSyncTransport(address, logger, null, null);
+    }
+
+    /**
+     * Parse an address of the form host:port.
+     *
+     * @throws IllegalArgumentException If the address is invalid.
+     */
+    static InetSocketAddress address(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException(String.format("Address \"%s\" has no port.", address));
+        }
+        return new InetSocketAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+    }
+
+    /**
+     * Accept connections until the server socket is closed. Runs on the server thread.
+     */
+    private void serve() {
+        while (!this.server.isClosed()) {
+            try (Socket socket = this.server.accept()) {
+                socket.setSoTimeout(TIMEOUT);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                String request = reader.readLine();
+                String[] parts = request == null ? new String[0] : request.trim().split(" +");
+                if (parts.length == 2 && parts[0].equals("FETCH")) {
+                    for (StackSizeDiff diff : this.journal.after(Long.parseLong(parts[1]))) {
+                        writer.write(diff.encode());
+                        writer.write('\n');
+                    }
+                    writer.write("END\n");
+                } else if (parts.length == 3 && parts[0].equals("ACK")) {
+                    this.acknowledgements.put(parts[1], Long.parseLong(parts[2]));
+                    writer.write("OK\n");
+                } else {
+                    writer.write("ERROR\n");
+                }
+                writer.flush();
+            } catch (SocketException e) {
+                // The server socket was closed, or a follower disconnected.
+            } catch (IOException | RuntimeException e) {
+                this.logger.log(Level.WARNING, "Error while serving a sync request.", e);
+            }
+        }
+    }
+
+    /**
+     * Send a request to the authority.
+     *
+     * @return The response lines, up to the terminating line.
+     */
+    private List<String> request(String request, String end) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(this.address, TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(request);
+            writer.write('\n');
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals(end)) {
+                    return lines;
+                }
+                if (line.equals("ERROR")) {
+                    break;
+                }
+                lines.add(line);
+            }
+            throw new IOException(String.format("The sync authority at %s did not complete the request: %s", this.address, request));
+        }
+    }
+
+    @Override
+    public void publish(StackSizeDiff diff) throws IOException {
+        if (this.journal == null) {
+            throw new IOException("Only the sync authority publishes diffs.");
+        }
+        this.journal.append(diff);
+    }
+
+    @Override
+    public void compact(long acknowledged) throws IOException {
+        if (this.journal != null) {
+            this.journal.compact(acknowledged);
+        }
+    }
+
+    @Override
+    public List<StackSizeDiff> fetch(long version) throws IOException {
+        if (this.journal != null) {
+            return this.journal.after(version);
+        }
+        List<StackSizeDiff> diffs = new ArrayList<>();
+        for (String line : this.request("FETCH " + version, "END")) {
+            try {
+                diffs.add(StackSizeDiff.decode(line));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+        return diffs;
+    }
+
+    @Override
+    public void acknowledge(String node, long version) throws IOException {
+        if (this.journal != null) {
+            this.acknowledgements.put(node, version);
+            return;
+        }
+        this.request("ACK " + node + " " + version, "OK");
+    }
+
+    @Override
+    public Map<String, Long> acknowledgements() {
+        return new TreeMap<>(this.acknowledgements);
+    }
+
+    @Override
+    public void close() {
+        if (this.server != null) {
+            try {
+                this.server.close();
+            } catch (IOException e) {
+                this.logger.log(Level.WARNING, "Unable to close the sync server.", e);
+            }
+        }
+    }
+
+}
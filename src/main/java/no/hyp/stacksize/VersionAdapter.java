@@ -0,0 +1,284 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resolves the server internals that hold the maximum stack size of a material. The reflective lookups are
+ * done once, when the adapter is probed, so that modifying a stack size is only a few method handle calls.
+ */
+final class VersionAdapter {
+
+    /**
+     * The server package version, for example "v1_15_R1".
+     */
+    private final String packageVersion;
+
+    /**
+     * CraftMagicNumbers.getItem(Material), typed (Material)Object.
+     */
+    private final MethodHandle getItem;
+
+    /**
+     * Setter for Item.maxStackSize, typed (Object, int)void.
+     */
+    private final MethodHandle setItemMaxStackSize;
+
+    /**
+     * Setter for Material.maxStack, typed (Material, int)void.
+     */
+    private final MethodHandle setMaterialMaxStack;
+
+    /**
+     * Handles used to resend single inventory slots. Resending slots is optional, so these are null if any of
+     * them could not be resolved.
+     */
+    private final SlotHandles slotHandles;
+
+    /**
+     * Descriptions of optional targets that could not be resolved.
+     */
+    private final List<String> unsupported;
+
+    private VersionAdapter(String packageVersion, MethodHandle getItem, MethodHandle setItemMaxStackSize, MethodHandle setMaterialMaxStack, SlotHandles slotHandles, List<String> unsupported) {
+        this.packageVersion = packageVersion;
+        this.getItem = getItem;
+        this.setItemMaxStackSize = setItemMaxStackSize;
+        this.setMaterialMaxStack = setMaterialMaxStack;
+        this.slotHandles = slotHandles;
+        this.unsupported = unsupported;
+    }
+
+    /**
+     * Get the server package version.
+     * In 1.15, the package that the server class CraftServer is in, is called "org.bukkit.craftbukkit.v1_15_R1".
+     *
+     * @param server The running server.
+     * @return The package version.
+     */
+    static String packageVersion(Server server) {
+        String[] packages = server.getClass().getPackage().getName().split("\\.");
+        return packages.length > 3 ? packages[3] : "";
+    }
+
+    /**
+     * Look up every reflection target needed to modify stack sizes on the given server version. All targets are
+     * probed before failing, so that the report lists everything that is missing at once.
+     *
+     * @param packageVersion The server package version.
+     * @return An adapter for the server version.
+     * @throws UnsupportedVersionException If any target is missing or inaccessible.
+     */
+    static VersionAdapter probe(String packageVersion) throws UnsupportedVersionException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<String> missing = new ArrayList<>();
+        String magicClassName = "org.bukkit.craftbukkit." + packageVersion + ".util.CraftMagicNumbers";
+        String itemClassName = "net.minecraft.server." + packageVersion + ".Item";
+        // Convert a Material into its corresponding Item by using the getItem method on the Material.
+        MethodHandle getItem = null;
+        try {
+            Method method = Class.forName(magicClassName).getDeclaredMethod("getItem", Material.class);
+            method.setAccessible(true);
+            getItem = lookup.unreflect(method).asType(MethodType.methodType(Object.class, Material.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            missing.add(String.format("%s.getItem(Material) (%s)", magicClassName, e));
+        }
+        // The maxStackSize field in Item.
+        MethodHandle setItemMaxStackSize = null;
+        try {
+            Field field = Class.forName(itemClassName).getDeclaredField("maxStackSize");
+            field.setAccessible(true);
+            setItemMaxStackSize = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, int.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            missing.add(String.format("%s.maxStackSize (%s)", itemClassName, e));
+        }
+        // The maxStack field in Material.
+        MethodHandle setMaterialMaxStack = null;
+        try {
+            Field field = Material.class.getDeclaredField("maxStack");
+            field.setAccessible(true);
+            setMaterialMaxStack = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Material.class, int.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            missing.add(String.format("%s.maxStack (%s)", Material.class.getName(), e));
+        }
+        if (!missing.isEmpty()) {
+            throw new UnsupportedVersionException(packageVersion, missing);
+        }
+        // Resending single slots is optional. Without it, whole inventories are resent instead.
+        List<String> unsupported = new ArrayList<>();
+        SlotHandles slotHandles = SlotHandles.probe(lookup, packageVersion, unsupported);
+        return new VersionAdapter(packageVersion, getItem, setItemMaxStackSize, setMaterialMaxStack, slotHandles, Collections.unmodifiableList(unsupported));
+    }
+
+    String getPackageVersion() {
+        return this.packageVersion;
+    }
+
+    /**
+     * @return Descriptions of optional reflection targets that are missing on this server version.
+     */
+    List<String> getUnsupported() {
+        return this.unsupported;
+    }
+
+    /**
+     * @return True if single inventory slots can be resent to a player.
+     */
+    boolean canUpdateSlots() {
+        return this.slotHandles != null;
+    }
+
+    /**
+     * Resend some slots of a player's open inventory view, and the item on the player's cursor, to the client.
+     *
+     * @param player The player.
+     * @param rawSlots The raw slot numbers in the player's open inventory view.
+     * @param count The number of slots to read from rawSlots.
+     * @throws ReflectiveOperationException If the server rejects the update.
+     */
+    void updateSlots(Player player, int[] rawSlots, int count) throws ReflectiveOperationException {
+        if (this.slotHandles == null) {
+            throw new ReflectiveOperationException("Slot updates are not supported on server version " + this.packageVersion + ".");
+        }
+        SlotHandles h = this.slotHandles;
+        try {
+            Object handle = (Object) h.getHandle.invokeExact(player);
+            Object connection = (Object) h.getPlayerConnection.invokeExact(handle);
+            int windowId = (int) h.getWindowId.invokeExact((Object) h.getActiveContainer.invokeExact(handle));
+            for (int i = 0; i < count; i++) {
+                int rawSlot = rawSlots[i];
+                // Slots outside of the view, such as -999 for clicks outside of the window, do not exist.
+                if (rawSlot < 0) {
+                    continue;
+                }
+                Object item = (Object) h.asNMSCopy.invokeExact(player.getOpenInventory().getItem(rawSlot));
+                h.sendPacket.invokeExact(connection, (Object) h.newSetSlot.invokeExact(windowId, rawSlot, item));
+            }
+            // Window -1 and slot -1 is the item on the cursor.
+            Object cursor = (Object) h.asNMSCopy.invokeExact(player.getItemOnCursor());
+            h.sendPacket.invokeExact(connection, (Object) h.newSetSlot.invokeExact(-1, -1, cursor));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ReflectiveOperationException(t);
+        }
+    }
+
+    /**
+     * Set the maximum stack size of a material in both the server's Item and the Bukkit Material.
+     *
+     * @param material The material. Must be an item.
+     * @param size The new maximum stack size.
+     * @throws ReflectiveOperationException If the server rejects the modification.
+     */
+    void setMaxStackSize(Material material, int size) throws ReflectiveOperationException {
+        try {
+            Object item = (Object) this.getItem.invokeExact(material);
+            this.setItemMaxStackSize.invokeExact(item, size);
+            this.setMaterialMaxStack.invokeExact(material, size);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ReflectiveOperationException(t);
+        }
+    }
+
+    /**
+     * The server internals needed to send a single slot to a client.
+     */
+    private static final class SlotHandles {
+
+        /**
+         * CraftPlayer.getHandle(), typed (Player)Object.
+         */
+        private MethodHandle getHandle;
+
+        /**
+         * Getter for EntityPlayer.playerConnection, typed (Object)Object.
+         */
+        private MethodHandle getPlayerConnection;
+
+        /**
+         * Getter for EntityHuman.activeContainer, typed (Object)Object.
+         */
+        private MethodHandle getActiveContainer;
+
+        /**
+         * Getter for Container.windowId, typed (Object)int.
+         */
+        private MethodHandle getWindowId;
+
+        /**
+         * CraftItemStack.asNMSCopy(ItemStack), typed (ItemStack)Object.
+         */
+        private MethodHandle asNMSCopy;
+
+        /**
+         * The PacketPlayOutSetSlot(int, int, ItemStack) constructor, typed (int, int, Object)Object.
+         */
+        private MethodHandle newSetSlot;
+
+        /**
+         * PlayerConnection.sendPacket(Packet), typed (Object, Object)void.
+         */
+        private MethodHandle sendPacket;
+
+        /**
+         * @return The handles, or null if any are missing. Missing targets are added to unsupported.
+         */
+        private static SlotHandles probe(MethodHandles.Lookup lookup, String packageVersion, List<String> unsupported) {
+            String craft = "org.bukkit.craftbukkit." + packageVersion;
+            String nms = "net.minecraft.server." + packageVersion;
+            SlotHandles h = new SlotHandles();
+            try {
+                Class<?> craftPlayer = Class.forName(craft + ".entity.CraftPlayer");
+                Class<?> entityPlayer = Class.forName(nms + ".EntityPlayer");
+                Class<?> container = Class.forName(nms + ".Container");
+                Class<?> nmsItemStack = Class.forName(nms + ".ItemStack");
+                Class<?> packet = Class.forName(nms + ".Packet");
+                h.getHandle = lookup.unreflect(craftPlayer.getMethod("getHandle"))
+                        .asType(MethodType.methodType(Object.class, Player.class));
+                h.getPlayerConnection = lookup.unreflectGetter(entityPlayer.getField("playerConnection"))
+                        .asType(MethodType.methodType(Object.class, Object.class));
+                h.getActiveContainer = lookup.unreflectGetter(entityPlayer.getField("activeContainer"))
+                        .asType(MethodType.methodType(Object.class, Object.class));
+                h.getWindowId = lookup.unreflectGetter(container.getField("windowId"))
+                        .asType(MethodType.methodType(int.class, Object.class));
+                h.asNMSCopy = lookup.unreflect(Class.forName(craft + ".inventory.CraftItemStack").getMethod("asNMSCopy", ItemStack.class))
+                        .asType(MethodType.methodType(Object.class, ItemStack.class));
+                h.newSetSlot = lookup.unreflectConstructor(Class.forName(nms + ".PacketPlayOutSetSlot").getConstructor(int.class, int.class, nmsItemStack))
+                        .asType(MethodType.methodType(Object.class, int.class, int.class, Object.class));
+                h.sendPacket = lookup.unreflect(Class.forName(nms + ".PlayerConnection").getMethod("sendPacket", packet))
+                        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                return h;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                unsupported.add(String.format("Slot updates (%s)", e));
+                return null;
+            }
+        }
+
+    }
+
+    /**
+     * Thrown when the running server does not have the internals that the adapter needs.
+     */
+    static final class UnsupportedVersionException extends Exception {
+
+        UnsupportedVersionException(String packageVersion, List<String> missing) {
+            super(String.format("Server version \"%s\" is not supported. Missing reflection targets: %s.", packageVersion, String.join(", ", missing)));
+        }
+
+    }
+
+}
@@ -0,0 +1,191 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Stack sizes for particular worlds, compiled on top of the applied profile. Maximum stack sizes are global on the
+ * server, so a world's stack sizes are applied while the server is handling something in that world, and the base
+ * stack sizes while it is handling something in any other world. Which set is applied is the context.
+ *
+ * For every world, the materials whose size differs from the base are found when the overlays are compiled. A
+ * context switch then only touches the materials that differ in the context being left or the one being entered.
+ * Leaving a world restores the applied base stack sizes, so that stack sizes modified by command since the overlays
+ * were compiled are kept. The overlays are immutable.
+ */
+final class WorldOverlays {
+
+    private static final WorldOverlays EMPTY = new WorldOverlays(new StackSizeTable(), Collections.emptyMap());
+
+    private final StackSizeTable base;
+
+    private final Map<String, Overlay> overlays;
+
+    private WorldOverlays(StackSizeTable base, Map<String, Overlay> overlays) {
+        this.base = base;
+        this.overlays = overlays;
+    }
+
+    /**
+     * @return Overlays with no worlds.
+     */
+    static WorldOverlays empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Compile the overlays of the worlds section of a configuration.
+     *
+     * @param base The compiled rules of the applied profile.
+     * @param worlds The worlds section, mapping world names to rules like stackSizes.
+     * @param materials Looks up a material name.
+     * @param tags Looks up the materials of a tag.
+     * @param logger Invalid entries are logged and skipped.
+     * @return The overlays.
+     */
+    static WorldOverlays compile(StackSizeRules base, ConfigurationSection worlds, Function<String, Material> materials, Function<String, Collection<Material>> tags, Logger logger) {
+        StackSizeTable baseTable = base.getTable();
+        Map<String, Overlay> overlays = new HashMap<>();
+        for (String world : worlds.getKeys(false)) {
+            ConfigurationSection section = worlds.getConfigurationSection(world);
+            if (section == null) {
+                logger.warning(String.format("World \"%s\" is not a list of stack sizes. Skipping.", world));
+                continue;
+            }
+            StackSizeTable table = StackSizeRules.compile(base, "world " + world, section.getValues(false), materials, tags, logger).getTable();
+            int[] differing = differing(baseTable, table);
+            BitSet mask = new BitSet();
+            for (int i : differing) {
+                mask.set(i);
+            }
+            overlays.put(world, new Overlay(table, differing, mask));
+        }
+        return new WorldOverlays(baseTable, overlays);
+    }
+
+    /**
+     * @return The ordinals of the materials that are configured differently in the two tables.
+     */
+    private static int[] differing(StackSizeTable base, StackSizeTable table) {
+        int[] ordinals = new int[table.size() + base.size()];
+        int count = 0;
+        for (int i = table.next(0); i >= 0; i = table.next(i + 1)) {
+            if (!base.contains(i) || base.get(i, 0) != table.get(i, 0)) {
+                ordinals[count++] = i;
+            }
+        }
+        for (int i = base.next(0); i >= 0; i = base.next(i + 1)) {
+            if (!table.contains(i)) {
+                ordinals[count++] = i;
+            }
+        }
+        return Arrays.copyOf(ordinals, count);
+    }
+
+    boolean isEmpty() {
+        return this.overlays.isEmpty();
+    }
+
+    /**
+     * @return The names of the worlds that have their own stack sizes.
+     */
+    Set<String> getWorlds() {
+        return Collections.unmodifiableSet(this.overlays.keySet());
+    }
+
+    /**
+     * @param world A world name.
+     * @return The context of the world: the world name if the world has an overlay, otherwise null for the base.
+     */
+    String context(String world) {
+        return this.overlays.containsKey(world) ? world : null;
+    }
+
+    /**
+     * @param context A world with an overlay, or null for the base.
+     * @return The configured stack sizes of the context. Must not be modified.
+     */
+    StackSizeTable getTable(String context) {
+        Overlay overlay = context != null ? this.overlays.get(context) : null;
+        return overlay != null ? overlay.table : this.base;
+    }
+
+    /**
+     * @param context A world with an overlay, or null for the base.
+     * @param ordinal The ordinal of a material.
+     * @return True if the context applies a stack size to the material that differs from the base.
+     */
+    boolean isModified(String context, int ordinal) {
+        Overlay overlay = context != null ? this.overlays.get(context) : null;
+        return overlay != null && overlay.mask.get(ordinal);
+    }
+
+    /**
+     * Switch between contexts. Only the materials that differ from the base in either context are given to the
+     * target, each once, without allocating. The materials of the old context are given their applied base size,
+     * and those of the new context their size in the new context. Materials that are not configured get their
+     * Vanilla size.
+     *
+     * @param from The current context.
+     * @param to The new context.
+     * @param base The applied base stack sizes.
+     * @param vanilla The Vanilla stack sizes of modified materials.
+     * @param target Applies a stack size.
+     */
+    void swap(String from, String to, StackSizeTable base, StackSizeTable vanilla, Target target) {
+        Overlay leaving = from != null ? this.overlays.get(from) : null;
+        Overlay entering = to != null ? this.overlays.get(to) : null;
+        if (leaving != null) {
+            for (int i : leaving.differing) {
+                if (entering == null || !entering.mask.get(i)) {
+                    target.apply(i, base.get(i, vanilla.get(i, StackSizeTable.material(i).getMaxStackSize())));
+                }
+            }
+        }
+        if (entering != null) {
+            for (int i : entering.differing) {
+                target.apply(i, entering.table.get(i, vanilla.get(i, StackSizeTable.material(i).getMaxStackSize())));
+            }
+        }
+    }
+
+    /**
+     * Applies the stack sizes of a context switch.
+     */
+    interface Target {
+
+        void apply(int ordinal, int size);
+
+    }
+
+    /**
+     * The compiled stack sizes of a world, and the materials where they differ from the base, as ordinals and as a
+     * set.
+     */
+    private static final class Overlay {
+
+        private final StackSizeTable table;
+
+        private final int[] differing;
+
+        private final BitSet mask;
+
+        Overlay(StackSizeTable table, int[] differing, BitSet mask) {
+            this.table = table;
+            this.differing = differing;
+            this.mask = mask;
+        }
+
+    }
+
+}
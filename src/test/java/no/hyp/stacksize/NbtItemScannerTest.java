@@ -0,0 +1,197 @@
+package no.hyp.stacksize;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class NbtItemScannerTest {
+
+    private static final int TAG_BYTE = 1;
+
+    private static final int TAG_INT = 3;
+
+    private static final int TAG_STRING = 8;
+
+    private static final int TAG_LIST = 9;
+
+    private static final int TAG_COMPOUND = 10;
+
+    @Test
+    public void findsItemsInsideShulkerBoxes() {
+        byte[] data = new Nbt().begin("")
+                .list("Inventory", TAG_COMPOUND, 1)
+                    .tagByte("Slot", 0).item("minecraft:shulker_box", 1)
+                    .begin("tag").begin("BlockEntityTag")
+                        .list("Items", TAG_COMPOUND, 2)
+                            .tagByte("Slot", 0).item("minecraft:bread", 64).end()
+                            .tagByte("Slot", 1).item("minecraft:oak_boat", 16).end()
+                    .end().end()
+                .end()
+                .end().bytes();
+        // A compound is reported when it ends, so the nested items come before the shulker box.
+        assertEquals(Arrays.asList("minecraft:bread 64", "minecraft:oak_boat 16", "minecraft:shulker_box 1"), scan(data));
+    }
+
+    @Test
+    public void skipsVillagerOffers() {
+        byte[] data = new Nbt().begin("")
+                .string("id", "minecraft:villager")
+                .begin("Offers")
+                    .list("Recipes", TAG_COMPOUND, 1)
+                        .begin("buy").item("minecraft:emerald", 5).end()
+                        .begin("sell").item("minecraft:bread", 3).end()
+                        .tagInt("maxUses", 12)
+                    .end()
+                .end()
+                .list("Inventory", TAG_COMPOUND, 1)
+                    .item("minecraft:wheat", 10).end()
+                .end().bytes();
+        assertEquals(Arrays.asList("minecraft:wheat 10"), scan(data));
+    }
+
+    @Test
+    public void readsCountsAsUnsigned() {
+        byte[] data = new Nbt().begin("")
+                .list("Items", TAG_COMPOUND, 1).item("minecraft:bread", 200).end()
+                .end().bytes();
+        assertEquals(Arrays.asList("minecraft:bread 200"), scan(data));
+    }
+
+    @Test
+    public void countOffsetClampsInPlace() {
+        byte[] data = new Nbt().begin("")
+                .list("Items", TAG_COMPOUND, 2)
+                    .item("minecraft:bread", 100).end()
+                    .item("minecraft:apple", 10).end()
+                .end().bytes();
+        NbtItemScanner.scan(data, data.length, (id, count, countOffset) -> {
+            if (count > 64) {
+                data[countOffset] = 64;
+            }
+        });
+        assertEquals(Arrays.asList("minecraft:bread 64", "minecraft:apple 10"), scan(data));
+    }
+
+    @Test
+    public void onlyScansTheGivenLength() {
+        byte[] data = new Nbt().begin("")
+                .list("Items", TAG_COMPOUND, 1).item("minecraft:bread", 3).end()
+                .end().bytes();
+        byte[] padded = Arrays.copyOf(data, data.length + 16);
+        List<String> items = new ArrayList<>();
+        NbtItemScanner.scan(padded, data.length, (id, count, countOffset) -> items.add(id + " " + count));
+        assertEquals(Arrays.asList("minecraft:bread 3"), items);
+    }
+
+    @Test
+    public void rejectsTruncatedData() {
+        byte[] data = new Nbt().begin("")
+                .list("Items", TAG_COMPOUND, 1).item("minecraft:bread", 3).end()
+                .end().bytes();
+        for (int length = 0; length < data.length; length++) {
+            try {
+                NbtItemScanner.scan(data, length, (id, count, countOffset) -> {});
+                fail(String.format("Data truncated to %d of %d bytes was accepted.", length, data.length));
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRootThatIsNotACompound() {
+        byte[] data = new Nbt().tagInt("", 1).bytes();
+        NbtItemScanner.scan(data, data.length, (id, count, countOffset) -> {});
+    }
+
+    /**
+     * @return The items of a scan as "id count", in the order they are reported.
+     */
+    private static List<String> scan(byte[] data) {
+        List<String> items = new ArrayList<>();
+        NbtItemScanner.scan(data, data.length, (id, count, countOffset) -> items.add(id + " " + count));
+        return items;
+    }
+
+    /**
+     * Writes uncompressed NBT by hand. Tags in a list are written without a type and name, so a compound in a list is
+     * written as its tags followed by {@link #end()}.
+     */
+    private static final class Nbt {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private final DataOutputStream out = new DataOutputStream(this.bytes);
+
+        Nbt begin(String name) {
+            return this.header(TAG_COMPOUND, name);
+        }
+
+        Nbt end() {
+            return this.write(() -> this.out.writeByte(0));
+        }
+
+        Nbt list(String name, int elementType, int length) {
+            return this.header(TAG_LIST, name).write(() -> {
+                this.out.writeByte(elementType);
+                this.out.writeInt(length);
+            });
+        }
+
+        Nbt string(String name, String value) {
+            return this.header(TAG_STRING, name).write(() -> this.out.writeUTF(value));
+        }
+
+        Nbt tagByte(String name, int value) {
+            return this.header(TAG_BYTE, name).write(() -> this.out.writeByte(value));
+        }
+
+        Nbt tagInt(String name, int value) {
+            return this.header(TAG_INT, name).write(() -> this.out.writeInt(value));
+        }
+
+        /**
+         * The tags of an item stack.
+         */
+        Nbt item(String id, int count) {
+            return this.string("id", id).tagByte("Count", count);
+        }
+
+        byte[] bytes() {
+            return this.bytes.toByteArray();
+        }
+
+        private Nbt header(int type, String name) {
+            return this.write(() -> {
+                this.out.writeByte(type);
+                this.out.writeUTF(name);
+            });
+        }
+
+        private Nbt write(Writer writer) {
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        private interface Writer {
+
+            void write() throws IOException;
+
+        }
+
+    }
+
+}
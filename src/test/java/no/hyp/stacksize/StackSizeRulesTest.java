@@ -0,0 +1,108 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StackSizeRulesTest {
+
+    private static final Logger LOGGER = Logger.getLogger(StackSizeRulesTest.class.getName());
+
+    private static final Map<String, Collection<Material>> TAGS = new HashMap<>();
+
+    static {
+        TAGS.put("minecraft:boats", Arrays.asList(Material.OAK_BOAT, Material.BIRCH_BOAT));
+        TAGS.put("minecraft:food", Arrays.asList(Material.BREAD));
+    }
+
+    @Test
+    public void specificRulesTakePrecedence() {
+        // Written from the most to the least specific, so that the order of the entries does not decide.
+        Map<String, Object> entries = new LinkedHashMap<>();
+        entries.put("OAK_BOAT", 16);
+        entries.put("*_BOAT", 8);
+        entries.put("#boats", 4);
+        entries.put("#food", 2);
+        entries.put("@edible", 32);
+        StackSizeRules rules = compile(StackSizeRules.empty(), "stackSizes", entries);
+        assertEquals(16, rules.getTable().get(Material.OAK_BOAT, 0));
+        assertEquals(8, rules.getTable().get(Material.BIRCH_BOAT, 0));
+        assertEquals(2, rules.getTable().get(Material.BREAD, 0));
+        assertEquals(32, rules.getTable().get(Material.APPLE, 0));
+        assertEquals("stackSizes: OAK_BOAT", rules.getSource(Material.OAK_BOAT));
+        assertEquals("stackSizes: *_BOAT", rules.getSource(Material.BIRCH_BOAT));
+        assertEquals("stackSizes: #food", rules.getSource(Material.BREAD));
+        assertEquals("stackSizes: @edible", rules.getSource(Material.APPLE));
+    }
+
+    @Test
+    public void laterRuleOfTheSameKindTakesPrecedence() {
+        Map<String, Object> entries = new LinkedHashMap<>();
+        entries.put("*_BOAT", 8);
+        entries.put("OAK_*", 2);
+        StackSizeRules rules = compile(StackSizeRules.empty(), "stackSizes", entries);
+        assertEquals(2, rules.getTable().get(Material.OAK_BOAT, 0));
+        assertEquals(8, rules.getTable().get(Material.BIRCH_BOAT, 0));
+    }
+
+    @Test
+    public void entriesTakePrecedenceOverTheBase() {
+        Map<String, Object> baseEntries = new LinkedHashMap<>();
+        baseEntries.put("BREAD", 16);
+        baseEntries.put("OAK_BOAT", 4);
+        StackSizeRules base = compile(StackSizeRules.empty(), "stackSizes", baseEntries);
+        StackSizeRules rules = compile(base, "profile night", Collections.singletonMap("@edible", 32));
+        assertEquals(32, rules.getTable().get(Material.BREAD, 0));
+        assertEquals("profile night: @edible", rules.getSource(Material.BREAD));
+        assertEquals(4, rules.getTable().get(Material.OAK_BOAT, 0));
+        assertEquals("stackSizes: OAK_BOAT", rules.getSource(Material.OAK_BOAT));
+        // The base is not modified.
+        assertEquals(16, base.getTable().get(Material.BREAD, 0));
+    }
+
+    @Test
+    public void globsIgnoreCaseAndNamespace() {
+        StackSizeRules rules = compile(StackSizeRules.empty(), "stackSizes", Collections.singletonMap("minecraft:oak_b?at", 8));
+        assertEquals(8, rules.getTable().get(Material.OAK_BOAT, 0));
+        assertFalse(rules.getTable().contains(Material.BIRCH_BOAT));
+    }
+
+    @Test
+    public void sizesMayBeStrings() {
+        StackSizeRules rules = compile(StackSizeRules.empty(), "stackSizes", Collections.singletonMap("BREAD", " 12 "));
+        assertEquals(12, rules.getTable().get(Material.BREAD, 0));
+    }
+
+    @Test
+    public void invalidEntriesAreSkipped() {
+        Map<String, Object> entries = new LinkedHashMap<>();
+        entries.put("NOT_A_MATERIAL", 8);
+        entries.put("#not_a_tag", 8);
+        entries.put("@not_a_predicate", 8);
+        entries.put("BREAD", "many");
+        StackSizeRules rules = compile(StackSizeRules.empty(), "stackSizes", entries);
+        assertTrue(rules.getTable().isEmpty());
+        assertNull(rules.getSource(Material.BREAD));
+    }
+
+    private static StackSizeRules compile(StackSizeRules base, String origin, Map<String, Object> entries) {
+        return StackSizeRules.compile(base, origin, entries, Material::matchMaterial, StackSizeRulesTest::tag, LOGGER);
+    }
+
+    private static Collection<Material> tag(String name) {
+        return TAGS.get(name.indexOf(':') < 0 ? "minecraft:" + name : name);
+    }
+
+}
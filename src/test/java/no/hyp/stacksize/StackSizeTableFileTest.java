@@ -0,0 +1,91 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StackSizeTableFileTest {
+
+    @Test
+    public void supportsCsvAndYaml() {
+        assertTrue(StackSizeTableFile.isSupported("sizes.csv"));
+        assertTrue(StackSizeTableFile.isSupported("sizes.YML"));
+        assertTrue(StackSizeTableFile.isSupported("sizes.yaml"));
+        assertFalse(StackSizeTableFile.isSupported("sizes.txt"));
+        assertFalse(StackSizeTableFile.isSupported("sizes"));
+    }
+
+    @Test
+    public void readsCsv() throws InvalidConfigurationException {
+        String csv = "material,size\r\n# Boats\r\n\r\nOAK_BOAT, 16\r\n minecraft:bread ,32\r\nAPPLE\n";
+        List<StackSizeTableFile.Entry> entries = StackSizeTableFile.read("sizes.csv", csv.getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("OAK_BOAT=16 (line 4)", "minecraft:bread=32 (line 5)", "APPLE= (line 6)"), describe(entries));
+    }
+
+    @Test
+    public void readsCsvWithoutHeader() throws InvalidConfigurationException {
+        List<StackSizeTableFile.Entry> entries = StackSizeTableFile.read("sizes.csv", "BREAD,8\nMATERIAL,4\n".getBytes(StandardCharsets.UTF_8));
+        // Only a first line can be a header.
+        assertEquals(Arrays.asList("BREAD=8 (line 1)", "MATERIAL=4 (line 2)"), describe(entries));
+    }
+
+    @Test
+    public void readsYamlUnderStackSizes() throws InvalidConfigurationException {
+        String yaml = "stackSizes:\n  OAK_BOAT: 16\n  BREAD: 32\n";
+        List<StackSizeTableFile.Entry> entries = StackSizeTableFile.read("sizes.yml", yaml.getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("OAK_BOAT=16 (OAK_BOAT)", "BREAD=32 (BREAD)"), describe(entries));
+    }
+
+    @Test
+    public void readsYamlWithoutStackSizes() throws InvalidConfigurationException {
+        List<StackSizeTableFile.Entry> entries = StackSizeTableFile.read("sizes.yaml", "OAK_BOAT: 16\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("OAK_BOAT=16 (OAK_BOAT)"), describe(entries));
+    }
+
+    @Test(expected = InvalidConfigurationException.class)
+    public void rejectsInvalidYaml() throws InvalidConfigurationException {
+        StackSizeTableFile.read("sizes.yml", "stackSizes: [".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readsWhatItWrites() throws InvalidConfigurationException {
+        StackSizeTable stackSizes = new StackSizeTable();
+        stackSizes.put(Material.OAK_BOAT, 16);
+        stackSizes.put(Material.BREAD, 32);
+        Map<String, String> expected = new HashMap<>();
+        expected.put("OAK_BOAT", "16");
+        expected.put("BREAD", "32");
+        for (String fileName : new String[] { "sizes.csv", "sizes.yml" }) {
+            byte[] contents = StackSizeTableFile.write(fileName, stackSizes);
+            assertEquals(fileName, expected, sizes(StackSizeTableFile.read(fileName, contents)));
+        }
+    }
+
+    private static List<String> describe(List<StackSizeTableFile.Entry> entries) {
+        List<String> descriptions = new ArrayList<>();
+        for (StackSizeTableFile.Entry entry : entries) {
+            descriptions.add(String.format("%s=%s (%s)", entry.getMaterial(), entry.getSize(), entry.getLocation()));
+        }
+        return descriptions;
+    }
+
+    private static Map<String, String> sizes(List<StackSizeTableFile.Entry> entries) {
+        Map<String, String> sizes = new HashMap<>();
+        for (StackSizeTableFile.Entry entry : entries) {
+            sizes.put(entry.getMaterial(), entry.getSize());
+        }
+        return sizes;
+    }
+
+}
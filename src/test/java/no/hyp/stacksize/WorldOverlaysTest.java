@@ -0,0 +1,103 @@
+package no.hyp.stacksize;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WorldOverlaysTest {
+
+    private static final Logger LOGGER = Logger.getLogger(WorldOverlaysTest.class.getName());
+
+    private StackSizeRules base;
+
+    private WorldOverlays overlays;
+
+    @Before
+    public void setUp() throws InvalidConfigurationException {
+        Map<String, Object> entries = new LinkedHashMap<>();
+        entries.put("BREAD", 32);
+        entries.put("APPLE", 16);
+        this.base = StackSizeRules.compile(StackSizeRules.empty(), "stackSizes", entries, Material::matchMaterial, name -> null, LOGGER);
+        YamlConfiguration worlds = new YamlConfiguration();
+        worlds.loadFromString("the_nether:\n  BREAD: 8\n  APPLE: 16\n  OAK_BOAT: 16\nthe_end:\n  BREAD: 4\nbroken: 5\n");
+        this.overlays = WorldOverlays.compile(this.base, worlds, Material::matchMaterial, name -> null, LOGGER);
+    }
+
+    @Test
+    public void skipsWorldsThatAreNotSections() {
+        assertEquals(new HashSet<>(Arrays.asList("the_nether", "the_end")), this.overlays.getWorlds());
+        assertNull(this.overlays.context("broken"));
+        assertNull(this.overlays.context("world"));
+        assertEquals("the_end", this.overlays.context("the_end"));
+    }
+
+    @Test
+    public void onlyDifferingMaterialsAreModified() {
+        assertTrue(this.overlays.isModified("the_nether", Material.BREAD.ordinal()));
+        assertTrue(this.overlays.isModified("the_nether", Material.OAK_BOAT.ordinal()));
+        // Configured, but the same size as the base.
+        assertFalse(this.overlays.isModified("the_nether", Material.APPLE.ordinal()));
+        assertFalse(this.overlays.isModified("the_end", Material.OAK_BOAT.ordinal()));
+        assertFalse(this.overlays.isModified(null, Material.BREAD.ordinal()));
+    }
+
+    @Test
+    public void enteringAWorldAppliesItsDifferences() {
+        List<String> applied = this.swap(null, "the_nether", this.base.getTable());
+        assertEquals(new HashSet<>(Arrays.asList("BREAD=8", "OAK_BOAT=16")), new HashSet<>(applied));
+        assertEquals(2, applied.size());
+    }
+
+    @Test
+    public void switchingWorldsAppliesEachMaterialOnce() {
+        List<String> applied = this.swap("the_nether", "the_end", this.base.getTable());
+        // The boat is only configured in the nether, so it gets its Vanilla size back.
+        assertEquals(new HashSet<>(Arrays.asList("BREAD=4", "OAK_BOAT=" + Material.OAK_BOAT.getMaxStackSize())), new HashSet<>(applied));
+        assertEquals(2, applied.size());
+    }
+
+    @Test
+    public void leavingAWorldRestoresTheAppliedBase() {
+        // Stack sizes modified by command after the overlays were compiled are restored, not the compiled base.
+        StackSizeTable appliedBase = new StackSizeTable(this.base.getTable());
+        appliedBase.put(Material.BREAD, 20);
+        StackSizeTable vanilla = new StackSizeTable();
+        vanilla.put(Material.OAK_BOAT, 3);
+        List<String> applied = new ArrayList<>();
+        this.overlays.swap("the_nether", null, appliedBase, vanilla, (ordinal, size) -> applied.add(StackSizeTable.material(ordinal).name() + "=" + size));
+        assertEquals(new HashSet<>(Arrays.asList("BREAD=20", "OAK_BOAT=3")), new HashSet<>(applied));
+        assertEquals(2, applied.size());
+    }
+
+    @Test
+    public void switchingBetweenBasesAppliesNothing() {
+        assertEquals(Collections.emptyList(), this.swap(null, null, this.base.getTable()));
+        assertEquals(Collections.emptyList(), this.swap(null, "world", this.base.getTable()));
+    }
+
+    /**
+     * @return The stack sizes the switch applies, as "MATERIAL=size".
+     */
+    private List<String> swap(String from, String to, StackSizeTable appliedBase) {
+        List<String> applied = new ArrayList<>();
+        this.overlays.swap(from, to, appliedBase, new StackSizeTable(), (ordinal, size) -> applied.add(StackSizeTable.material(ordinal).name() + "=" + size));
+        return applied;
+    }
+
+}